@@ -1,420 +1,4444 @@
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
 import java.util.Queue;
-import java.util.LinkedList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.ArrayList;
+import java.time.Duration;
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 public class Main {
-    // Constants for seller counts, simulation parameters, and concert dimensions
-    static final int highSellerCount = 1;
-    static final int mediumSellerCount = 3;
-    static final int lowSellerCount = 6;
-    static final int totalSellers = highSellerCount + mediumSellerCount + lowSellerCount;
-    static final int concertRows = 10;
-    static final int concertCols = 10;
-    static final int simulationDuration = 60;
+    // All simulation state lives in a Main instance, so one JVM can run many simulations at once.
+    // Seller counts (--high=, --medium=, --low=), simulation parameters, and concert dimensions
+    int highSellerCount = 1;
+    int mediumSellerCount = 3;
+    int lowSellerCount = 6;
+    int totalSellers = highSellerCount + mediumSellerCount + lowSellerCount;
+    int concertRows = 10;  // --rows=R
+    int concertCols = 10;  // --cols=C
+    int concertSections = 1;  // Row ranges the house is split into, --sections=S
+    static final int chartSeatLimit = 10000;  // Largest venue the final chart is printed for
+    int simulationDuration = 60;  // Length of the sale in minutes, --minutes=M
 
     // Seller Structure
-    static class Seller {
-        char sellerNo;  // Identifier for the seller
+    class Seller {
+        int sellerNo;  // Identifier for the seller
         char sellerType;  // Type of seller (H: High, M: Medium, L: Low)
-        Queue<Customer> sellerQueue;  // Queue of customers waiting for this seller
+        ArrivalStream sellerQueue;  // Customers still to arrive at this seller
+        CustomerStore customers;  // This seller's customers, from arrival until they leave
+        // Slots of the customers who arrived and wait at the window, a deque peers can take from
+        // only when they may
+        WindowQueue windowQueue = steal || admission.equals("redirect") ? new StealDeque() : new IntRing();
+        int cust = -1;  // Slot of the customer being served, -1 when the window is free
+        int randomWaitTime = 0;  // Minutes left on the sale in progress
+        SplittableRandom random;  // This seller's own random stream
+        SplittableRandom decisions;  // Whether held customers buy, when --hold is on
+        Seller[] peers;  // Sellers of this tier, this one included, with --steal or --admit=redirect
+        int peerIndex;  // This seller's index in peers
+        int stealCursor = 0;  // Offset of the peer probed last
+        SlotRing inbox;  // Customers peers sent here with --admit=redirect, as queued at << 32 | no, arrival << 32 | party
 
-        Seller(char sellerNo, char sellerType, Queue<Customer> sellerQueue) {
+        Seller(int sellerNo, char sellerType, ArrivalStream sellerQueue, CustomerStore customers, SplittableRandom random) {
             this.sellerNo = sellerNo;
             this.sellerType = sellerType;
             this.sellerQueue = sellerQueue;
+            this.customers = customers;
+            this.random = random;
+        }
+
+        // Serve one minute: take in new arrivals, start the next customer, advance the sale
+        void serveTick(int time) {
+            int no = sellerNumber(sellerType, sellerNo);
+            customers.reclaim();
+
+            // Customers peers sent on to this seller queue up first, they arrived before
+            while (inbox != null && inbox.poll()) {
+                windowQueue.add(receive());
+            }
+
+            // All New Customers Arrived
+            while (sellerQueue.hasArrivalBy(time)) {
+                int temp = sellerQueue.next(customers);
+                customerArrived(time, sellerType, no, customers, temp);
+                if (admit(time, no, temp)) {
+                    windowQueue.add(temp);
+                }
+            }
+
+            // Serve the next customer, an idle seller takes one waiting at a busy peer instead
+            if (cust == -1) {
+                cust = windowQueue.poll();
+                if (cust == -1 && steal) {
+                    cust = steal();
+                }
+                if (cust != -1) {
+                    randomWaitTime = startService(time, sellerType, no, customers, cust, random);
+                }
+            }
+
+            if (cust != -1) {
+                if (randomWaitTime == 0) {
+                    // Selling a seat
+                    completeSale(time, sellerType, no, customers, cust, decisions);
+                    customers.free(cust);
+                    cust = -1;
+                } else {
+                    randomWaitTime--;
+                }
+            }
+            queueDepth(time, sellerType, no, windowQueue.size());
+        }
+
+        // Customers waiting, being sent here or in service at this seller
+        int ahead() {
+            return windowQueue.size() + (inbox != null ? inbox.size() : 0) + (cust != -1 ? 1 : 0);
+        }
+
+        // Admission control for a customer who just arrived, true when they join this seller's
+        // queue. Otherwise they are sent on to the peer of the tier with the fewest customers
+        // ahead, if that peer would admit them and has room in its inbox, or turned away. A
+        // customer sent on travels in the peer's inbox, so their slot here is free at once.
+        boolean admit(int time, int no, int slot) {
+            int ahead = ahead();
+            int party = customers.get(CustomerStore.PARTY, slot);
+            if (admits(time, sellerType, ahead, party)) {
+                metricsFor(sellerType).maxQueue.accumulate(ahead + 1);
+                return true;
+            }
+            Seller target = null;
+            if (admission.equals("redirect")) {
+                for (Seller peer : peers) {
+                    if (peer != this && (target == null || peer.ahead() < target.ahead())) {
+                        target = peer;
+                    }
+                }
+            }
+            long record = target != null && admits(time, sellerType, target.ahead(), party) ? target.inbox.reserve() : -1;
+            if (record != -1) {
+                metricsFor(sellerType).maxQueue.accumulate(target.ahead());
+                customerRedirected(time, sellerType, no, customers, slot, ahead, sellerNumber(sellerType, target.sellerNo));
+                target.inbox.set(record, 1, (long) customers.get(CustomerStore.ARRIVAL, slot) << 32 | party);
+                target.inbox.publish(record, (long) customers.get(CustomerStore.SELLER, slot) << 32
+                        | customers.get(CustomerStore.CUST_NO, slot));
+            } else {
+                customerRejected(time, sellerType, no, customers, slot, ahead);
+            }
+            customers.free(slot);
+            return false;
+        }
+
+        // Take in the customer of the record the inbox gave up last, returns their slot here
+        int receive() {
+            long[] sent = inbox.taken;
+            int slot = customers.add((int) (sent[0] >>> 32), (int) sent[0], (int) (sent[1] >>> 32));
+            customers.set(CustomerStore.PARTY, slot, (int) sent[1]);
+            return slot;
+        }
+
+        // Take the newest customer waiting at one of the next few peers, returns its slot in this
+        // seller's store or -1 when they have nobody waiting. The victim only recycles the slot of
+        // a customer taken from it once the thief has copied the customer and given the slot back.
+        int steal() {
+            int probes = Math.min(peers.length - 1, stealProbes);
+            for (int k = 0; k < probes; k++) {
+                stealCursor = stealCursor % (peers.length - 1) + 1;
+                Seller victim = peers[(peerIndex + stealCursor) % peers.length];
+                if (victim.windowQueue.isEmpty()) {
+                    continue;
+                }
+                // Room to give the slot back first, a victim with too many to take back is skipped
+                long record = victim.customers.returned.reserve();
+                if (record == -1) {
+                    continue;
+                }
+                int slot = ((StealDeque) victim.windowQueue).steal();
+                if (slot == -1) {
+                    victim.customers.returned.publish(record, SlotRing.CANCELLED);
+                    continue;
+                }
+                metricsFor(sellerType).stolen.increment();
+                return customers.takeOver(victim.customers, slot, record);
+            }
+            return -1;
+        }
+
+        // Close the window: everyone still waiting leaves
+        void closeWindow(int time) {
+            int no = sellerNumber(sellerType, sellerNo);
+            while (inbox != null && inbox.poll()) {
+                windowQueue.add(receive());
+            }
+            while (cust != -1 || !windowQueue.isEmpty()) {
+                if (cust == -1)
+                    cust = windowQueue.poll();
+                saleClosed(time, sellerType, no, customers, cust);
+                customers.free(cust);
+                cust = -1;
+            }
+        }
+    }
+
+    // Customer Store Structure
+    // One seller's customers as int columns indexed by slot, instead of an object per customer.
+    // A slot is recycled once its customer leaves, so a seller holds only as many slots as its
+    // longest queue has been and serving customers allocates nothing. --customers=direct keeps the
+    // columns in a direct buffer outside the Java heap.
+    static class CustomerStore {
+        static final int CUST_NO = 0;  // Identifier for the customer, numbered from 1 in arrival order
+        static final int ARRIVAL = 1;  // Time when the customer arrives
+        static final int SERVICE = 2;  // Minutes the sale takes
+        static final int RESPONSE = 3;  // Time it takes for the customer to be served
+        static final int TURNAROUND = 4;  // Total time the customer spends, including wait and service time
+        static final int SELLER = 5;  // Number of the seller whose queue the customer joined
+        static final int SEAT = 6;  // Seat held for the customer, -1 when none
+        static final int PARTY = 7;  // Seats the customer buys, side by side in one row
+        static final int COLUMNS = 8;
+
+        final int sellerNo;  // Seller the customers of this store arrive at
+        final boolean direct;
+        IntBuffer cells;  // Column c of slot s is at c * capacity + s
+        volatile IntBuffer shared;  // cells as other sellers' threads read it, replaced once a grown buffer is filled
+        int capacity;
+        int used = 0;  // Slots handed out at least once
+        int[] freeSlots;  // Stack of recycled slots
+        int freeCount = 0;
+        SlotRing returned;  // Slots other sellers took customers from, when they may
+
+        CustomerStore(int sellerNo, boolean direct, int capacity) {
+            this.sellerNo = sellerNo;
+            this.direct = direct;
+            this.capacity = capacity;
+            this.cells = allocate(capacity);
+            this.shared = cells;
+            this.freeSlots = new int[capacity];
+        }
+
+        IntBuffer allocate(int slots) {
+            if (direct) {
+                return ByteBuffer.allocateDirect(slots * COLUMNS * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+            return IntBuffer.wrap(new int[slots * COLUMNS]);
+        }
+
+        // Take a slot for a customer arriving at this store's seller, returns the slot
+        int add(int custNo, int arrivalTime) {
+            return add(sellerNo, custNo, arrivalTime);
+        }
+
+        // Take a slot for a customer another seller handed over
+        int adopt(CustomerStore from, int slot) {
+            int adopted = add(from.getShared(SELLER, slot), from.getShared(CUST_NO, slot), from.getShared(ARRIVAL, slot));
+            set(PARTY, adopted, from.getShared(PARTY, slot));
+            return adopted;
+        }
+
+        // Take over a customer from a store another thread owns, whose slot goes back to that owner
+        // through the record reserved for it in the owner's returned ring
+        int takeOver(CustomerStore from, int slot, long record) {
+            int adopted = adopt(from, slot);
+            from.returned.publish(record, slot);
+            return adopted;
+        }
+
+        // Owner only: recycle the slots of customers other sellers took over
+        void reclaim() {
+            while (returned != null && returned.poll()) {
+                free((int) returned.taken[0]);
+            }
+        }
+
+        int add(int queuedAt, int custNo, int arrivalTime) {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                if (used == capacity) {
+                    grow();
+                }
+                slot = used++;
+            }
+            set(CUST_NO, slot, custNo);
+            set(ARRIVAL, slot, arrivalTime);
+            set(SERVICE, slot, 0);
+            set(RESPONSE, slot, 0);
+            set(TURNAROUND, slot, 0);
+            set(SELLER, slot, queuedAt);
+            set(SEAT, slot, -1);
+            set(PARTY, slot, 1);
+            return slot;
+        }
+
+        // The customer left, its slot can be handed out again
+        void free(int slot) {
+            freeSlots[freeCount++] = slot;
+        }
+
+        int get(int column, int slot) {
+            return cells.get(column * capacity + slot);
+        }
+
+        // Read from another seller's thread: the buffer is read once, so a concurrent grow() can't
+        // pair the new capacity with the old buffer. The old buffer keeps every value it had, and
+        // a grown buffer is only published through the volatile once every value is copied.
+        int getShared(int column, int slot) {
+            IntBuffer buffer = shared;
+            return buffer.get(column * (buffer.limit() / COLUMNS) + slot);
+        }
+
+        void set(int column, int slot, int value) {
+            cells.put(column * capacity + slot, value);
+        }
+
+        // Double the slots, every column moves to its new offset
+        void grow() {
+            int larger = capacity * 2;
+            IntBuffer moved = allocate(larger);
+            for (int column = 0; column < COLUMNS; column++) {
+                for (int slot = 0; slot < used; slot++) {
+                    moved.put(column * larger + slot, get(column, slot));
+                }
+            }
+            cells = moved;
+            shared = moved;
+            capacity = larger;
+            freeSlots = Arrays.copyOf(freeSlots, larger);
+        }
+    }
+
+    // Window Queue Structure
+    // FIFO of the slots of the customers waiting at a seller's window
+    interface WindowQueue {
+        void add(int item);
+
+        // Take the oldest, -1 when empty
+        int poll();
+
+        int size();
+
+        boolean isEmpty();
+    }
+
+    // Int Ring Structure
+    // FIFO of customer slots in a power-of-two int array that doubles when full, for one thread
+    static class IntRing implements WindowQueue {
+        int[] items = new int[16];
+        int head = 0;  // Index of the oldest item
+        int size = 0;
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void add(int item) {
+            if (size == items.length) {
+                int[] larger = new int[items.length * 2];
+                for (int i = 0; i < size; i++) {
+                    larger[i] = items[(head + i) & (items.length - 1)];
+                }
+                items = larger;
+                head = 0;
+            }
+            items[(head + size++) & (items.length - 1)] = item;
+        }
+
+        public int poll() {
+            if (size == 0) {
+                return -1;
+            }
+            int item = items[head];
+            head = (head + 1) & (items.length - 1);
+            size--;
+            return item;
+        }
+
+        int pollLast() {
+            return items[(head + --size) & (items.length - 1)];
+        }
+    }
+
+    // Steal Deque Structure
+    // A seller's queue of customer slots that idle peers of its tier may steal from. The owner adds
+    // at the tail and serves from the head, thieves take from the tail. Head and size live in one
+    // AtomicLong next to a stamp, so every operation is a single CAS, and a CAS against an anchor
+    // that moved on and came back in between fails on the stamp.
+    static class StealDeque implements WindowQueue {
+        static final int positionBits = 24;
+        static final long positionMask = (1L << positionBits) - 1;
+
+        final AtomicLong anchor = new AtomicLong();  // stamp:16 | head:24 | size:24
+        volatile int[] items = new int[16];  // Position p is at p & (length - 1), only the owner replaces it
+
+        static long pack(long stamp, long head, long size) {
+            return (stamp << 48) | ((head & positionMask) << positionBits) | size;
+        }
+
+        static int head(long anchor) {
+            return (int) ((anchor >>> positionBits) & positionMask);
+        }
+
+        static int size(long anchor) {
+            return (int) (anchor & positionMask);
+        }
+
+        static long nextStamp(long anchor) {
+            return ((anchor >>> 48) + 1) & 0xffff;
+        }
+
+        public boolean isEmpty() {
+            return size(anchor.get()) == 0;
+        }
+
+        public int size() {
+            return size(anchor.get());
+        }
+
+        // Owner only: append at the tail
+        public void add(int item) {
+            while (true) {
+                long a = anchor.get();
+                int head = head(a);
+                int size = size(a);
+                int[] array = items;
+                if (size == positionMask) {
+                    throw new IllegalStateException("Window queue holds " + size + " customers");
+                }
+                if (size == array.length) {
+                    grow(array, head, size);
+                    continue;
+                }
+                array[(head + size) & (array.length - 1)] = item;
+                if (anchor.compareAndSet(a, pack(nextStamp(a), head, size + 1))) {
+                    return;
+                }
+            }
+        }
+
+        // Owner only: take the head, -1 when empty
+        public int poll() {
+            while (true) {
+                long a = anchor.get();
+                if (size(a) == 0) {
+                    return -1;
+                }
+                int[] array = items;
+                int item = array[head(a) & (array.length - 1)];
+                if (anchor.compareAndSet(a, pack(nextStamp(a), head(a) + 1, size(a) - 1))) {
+                    return item;
+                }
+            }
+        }
+
+        // Any peer: take the tail, -1 when empty
+        int steal() {
+            while (true) {
+                long a = anchor.get();
+                if (size(a) == 0) {
+                    return -1;
+                }
+                int[] array = items;
+                int item = array[(head(a) + size(a) - 1) & (array.length - 1)];
+                if (anchor.compareAndSet(a, pack(nextStamp(a), head(a), size(a) - 1))) {
+                    return item;
+                }
+            }
+        }
+
+        // Owner only: copy the live positions into an array twice the size. Thieves still reading
+        // the old array find the same items there, the owner never writes to it again.
+        void grow(int[] array, int head, int size) {
+            int[] larger = new int[array.length * 2];
+            for (int p = head; p < head + size; p++) {
+                larger[p & (larger.length - 1)] = array[p & (array.length - 1)];
+            }
+            items = larger;
+        }
+    }
+
+    // Slot Ring Structure
+    // Bounded multi-producer, single-consumer FIFO of records of non-negative longs in one
+    // AtomicLongArray, for handing customers between seller threads without allocating. A
+    // producer first reserves a record, so it sees a full ring before it takes anything, then
+    // fills the record in with its first field last. The consumer takes a record once its first
+    // field is there, and a producer that had nothing to hand over after all cancels its record.
+    static class SlotRing {
+        static final long EMPTY = -1;
+        static final long CANCELLED = -2;
+
+        final AtomicLongArray entries;  // Field k of the record at position p is at (p & mask) * width + k
+        final int width, mask;
+        final AtomicLong tail = new AtomicLong();  // Records reserved by producers
+        volatile long head = 0;  // Records taken, only the consumer moves it
+        final long[] taken;  // Fields of the record the consumer took last
+
+        // Ring of capacity records, rounded up to a power of two, of width fields each
+        SlotRing(int capacity, int width) {
+            capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            this.width = width;
+            this.mask = capacity - 1;
+            this.entries = new AtomicLongArray(capacity * width);
+            this.taken = new long[width];
+            for (int p = 0; p < capacity; p++) {
+                entries.set(p * width, EMPTY);
+            }
+        }
+
+        // Records reserved and not yet taken
+        int size() {
+            return (int) (tail.get() - head);
+        }
+
+        // Any thread: reserve a record, returns its position or -1 when the ring is full
+        long reserve() {
+            while (true) {
+                long t = tail.get();
+                if (t - head > mask) {
+                    return -1;
+                }
+                if (tail.compareAndSet(t, t + 1)) {
+                    return t;
+                }
+            }
+        }
+
+        // Fill in a field of a reserved record other than the first
+        void set(long position, int field, long value) {
+            entries.set((int) (position & mask) * width + field, value);
+        }
+
+        // Fill in the first field of a reserved record, which hands it over, or CANCELLED
+        void publish(long position, long first) {
+            entries.set((int) (position & mask) * width, first);
+        }
+
+        // Owner only: take the oldest record into taken, false when there is none or its producer
+        // has yet to hand it over
+        boolean poll() {
+            while (true) {
+                int at = (int) (head & mask) * width;
+                long first = entries.get(at);
+                if (first == EMPTY) {
+                    return false;
+                }
+                taken[0] = first;
+                for (int field = 1; field < width; field++) {
+                    taken[field] = entries.get(at + field);
+                }
+                // Emptied before the head moves on, so the producer that reuses it finds it empty
+                entries.set(at, EMPTY);
+                head = head + 1;
+                if (first != CANCELLED) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    // Simulation variables
+    int simulationTime;  // Current time in the simulation
+    int N = 15;  // Default number of customers per seller
+    String engine = "threads";  // Simulation engine, --engine=threads|events
+    String runtime = "platform";  // Seller runtime of the threads engine, --runtime=platform|virtual|forkjoin
+    String arrivals = "uniform";  // Arrival process of each seller's customers, --arrivals=uniform|poisson
+    String customerStore = "heap";  // Where customer columns live, --customers=heap|direct
+    String logMode = "text";  // Event log output, --log=text|binary|off
+    String logFile = null;  // --log-file=path, standard output for text when not given
+    long seed = new SplittableRandom().nextLong();  // Master seed every random stream derives from, --seed=S
+    SplittableRandom sellerStreams;  // Splits off one stream per seller, in the order sellers are created
+    EventLog eventLog;
+
+    // Variables to track response and turnaround times for each seller type
+    TierMetrics[] tierMetrics;  // H, M and L
+    int metricsEvery = 0;  // Print a metrics snapshot every this many minutes, --metrics-every=K
+
+    InventoryService inventory;  // Reserves this concert's seats instead of the venue, when load testing
+    int concertId;  // This concert's id at the inventory service
+
+    // Seat labels for the chart, with snapshots readers take while the sale runs
+    SeatChart seatChart;
+    String chartMode = "end";  // When the chart is printed, --chart=end|sale|diff
+    int holdMinutes = 0;  // Hold a seat from the start of service for this long, --hold=K
+    int abandonPercent = 0;  // Chance a held customer walks away instead of buying, --abandon=P
+    HoldWheel holds;
+    String walFile = null;  // Log every sale ahead to this file and recover from it, --wal=file
+    int partyMax = 1;  // Customers buy 1 to this many adjacent seats, --party=K
+    String jfrFile = null;  // Flight recording of the run and its per-tier summary, --jfr=file
+    SeatLog seatLog;
+    boolean steal = false;  // Idle sellers take customers waiting at busy peers of their tier, --steal
+    static final int stealProbes = 8;  // Peers an idle seller thread looks at per minute
+    static final int returnedSlots = 64;  // Slots taken over from a seller that can wait to go back to it
+    String admission = "off";  // Turn away customers with no prospect of a seat, or send them to a peer, --admit=off|reject|redirect
+    int queueCap = 0;  // Most customers a seller has waiting or in service, 0 for no bound, --queue-cap=Q
+    Venue venue;
+
+    // Command line modes that don't run a single simulation
+    static int concerts = 0;  // Load test an inventory service with this many concerts instead, --concerts=K
+    static int[] shardCounts = null;  // Partition counts the load test sweeps, --shards=1,2,4
+    static String benchFilter = null;  // Run the benchmarks whose name contains it instead, --bench[=filter]
+    static boolean selfTest = false;  // Check the concurrent and indexed structures instead, --selftest
+    static int trials = 0;  // Run a batch of this many trials per configuration instead, --trials=K
+    static int[] sweepN = null;  // Customers per seller of the batch, --sweep-n=5,10,15
+    static int[][] sweepSellers = null;  // H:M:L seller counts of the batch, --sweep-sellers=1:3:6,2:6:12
+    static String csvFile = null;  // Batch results as CSV, --csv=path
+
+    // Venue Structure
+    // The house is split into sections of consecutive rows. Each section is its own stripe of
+    // seat inventory. A tier keeps a cursor over the rows of the whole house in its order and
+    // takes each row's seats from that row's section, so the order is the same for any number
+    // of sections, and sellers only meet on the sections of the rows they are selling from.
+    static class Venue {
+        final int rows, cols;
+        final SeatInventory[] sections;
+        final int[] sectionOfRow;
+        final int[][] sectionOrder = new int[3][];  // Section at each position of a tier's order
+        final int[][] rowOrder = new int[3][];  // Row at each position of a tier's order
+        final int[][] rowPosition = new int[3][];  // Position of each row in a tier's order
+        final AtomicIntegerArray rowCursors = new AtomicIntegerArray(3);  // First row a tier may find seats in
+
+        Venue(int rows, int cols, int sectionCount) {
+            this.rows = rows;
+            this.cols = cols;
+            sectionCount = Math.max(1, Math.min(sectionCount, rows));
+
+            // Row order of every tier
+            for (int tier = 0; tier < 3; tier++) {
+                rowOrder[tier] = new int[rows];
+            }
+            int mid = rows / 2;
+            int pos = 0;
+            for (int rowJump = 0; mid + rowJump < rows || mid - rowJump >= 0; rowJump++) {
+                // M: the middle row, then one row behind and one in front, and so on outwards
+                if (mid + rowJump < rows) {
+                    rowOrder[1][pos++] = mid + rowJump;
+                }
+                if (rowJump != 0 && mid - rowJump >= 0) {
+                    rowOrder[1][pos++] = mid - rowJump;
+                }
+            }
+            for (int r = 0; r < rows; r++) {
+                rowOrder[0][r] = r;  // H: row 1 (the front) towards the back
+                rowOrder[2][r] = rows - 1 - r;  // L: the back row towards the front
+            }
+            for (int tier = 0; tier < 3; tier++) {
+                rowPosition[tier] = new int[rows];
+                for (pos = 0; pos < rows; pos++) {
+                    rowPosition[tier][rowOrder[tier][pos]] = pos;
+                }
+            }
+
+            // Split the rows into sections of nearly equal size
+            sections = new SeatInventory[sectionCount];
+            sectionOfRow = new int[rows];
+            for (int sNo = 0, firstRow = 0; sNo < sectionCount; sNo++) {
+                int sectionRows = rows / sectionCount + (sNo < rows % sectionCount ? 1 : 0);
+                sections[sNo] = new SeatInventory(firstRow, sectionRows, cols, rowOrder);
+                for (int r = firstRow; r < firstRow + sectionRows; r++) {
+                    sectionOfRow[r] = sNo;
+                }
+                firstRow += sectionRows;
+            }
+
+            // A tier visits the sections in the order their rows first come up in its row order
+            for (int tier = 0; tier < 3; tier++) {
+                boolean[] seen = new boolean[sectionCount];
+                sectionOrder[tier] = new int[sectionCount];
+                pos = 0;
+                for (int r : rowOrder[tier]) {
+                    if (!seen[sectionOfRow[r]]) {
+                        seen[sectionOfRow[r]] = true;
+                        sectionOrder[tier][pos++] = sectionOfRow[r];
+                    }
+                }
+            }
+        }
+
+        // Claim the next free seat in the tier's order, returns the seat index (row * cols + col)
+        // or -1 when the house is sold out
+        int claim(char sellerType) {
+            int tier = SeatInventory.tierIndex(sellerType);
+            int pos = rowCursors.get(tier);
+
+            while (pos < rows) {
+                int row = rowOrder[tier][pos];
+                SeatInventory section = sections[sectionOfRow[row]];
+                int seat = section.claimInRow(tier, row - section.firstRow);
+                if (seat >= 0) {
+                    return section.firstRow * cols + seat;
+                }
+                // The row is full, so the tier may skip it from now on
+                rowCursors.compareAndSet(tier, pos, pos + 1);
+                pos = Math.max(pos + 1, rowCursors.get(tier));
+            }
+
+            // A seat released while this tier moved its cursor past the row can be missed
+            // above, so look through every section again before reporting the house sold out
+            for (int section : sectionOrder[tier]) {
+                if (sections[section].available.get() > 0) {
+                    int seat = sections[section].claim(sellerType);
+                    if (seat >= 0) {
+                        return sections[section].firstRow * cols + seat;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        // Seats no tier has claimed, a moment's count while sellers claim
+        int available() {
+            int seats = 0;
+            for (SeatInventory section : sections) {
+                seats += section.available.get();
+            }
+            return seats;
+        }
+
+        // Keep free-run indexes, so that parties can be sold adjacent seats
+        void indexRuns() {
+            for (SeatInventory section : sections) {
+                section.indexRuns();
+            }
+        }
+
+        // Claim k adjacent seats in one row, in the row that comes first in the tier's order, returns
+        // the seat index of the block's lowest column or -1 when no row has k free seats together.
+        // Needs indexRuns() unless k is 1.
+        int claimGroup(char sellerType, int k) {
+            if (k == 1) {
+                return claim(sellerType);
+            }
+            int tier = SeatInventory.tierIndex(sellerType);
+            while (true) {
+                int bestSection = -1, bestRow = -1;
+                for (int sNo = 0; sNo < sections.length; sNo++) {
+                    int row = sections[sNo].groupRow(tier, k);
+                    if (row != -1 && (bestRow == -1 || rowPosition[tier][sections[sNo].firstRow + row] < rowPosition[tier][bestRow])) {
+                        bestSection = sNo;
+                        bestRow = sections[sNo].firstRow + row;
+                    }
+                }
+                if (bestSection == -1) {
+                    return -1;
+                }
+                // Another party may have taken the block since, then look again
+                int seat = sections[bestSection].claimGroup(sellerType, k);
+                if (seat >= 0) {
+                    return sections[bestSection].firstRow * cols + seat;
+                }
+            }
+        }
+
+        // Claim one given seat, false when it is taken already
+        boolean take(int seatIndex) {
+            int section = sectionOfRow[seatIndex / cols];
+            return sections[section].tryClaim(seatIndex - sections[section].firstRow * cols);
+        }
+
+        // Give a sold seat back, false when it was not sold
+        boolean release(int seatIndex) {
+            int section = sectionOfRow[seatIndex / cols];
+            if (!sections[section].release(seatIndex - sections[section].firstRow * cols)) {
+                return false;
+            }
+            for (int tier = 0; tier < 3; tier++) {
+                rowCursors.getAndAccumulate(tier, rowPosition[tier][seatIndex / cols], Math::min);
+            }
+            return true;
+        }
+    }
+
+    // Seat Inventory Structure
+    // Occupancy of one section is one bit per seat in an AtomicLongArray and a seat is claimed by
+    // CAS on its bit, so sellers never share a lock. Every seller tier walks the seats in its own
+    // order (H front to back, M middle-out, L back to front) from its own cursor. Every position
+    // before a cursor is taken, a released seat moves the cursors back to it, so finding the next
+    // seat is O(1) amortized.
+    static class SeatInventory {
+        final int firstRow, rows, cols, seats;
+        final AtomicLongArray occupied;  // One bit per seat, set once the seat is sold
+        final int[][] scanOrder = new int[3][];  // Seat index at each position of a tier's order
+        final int[][] scanPosition = new int[3][];  // Position of each seat in a tier's order
+        final AtomicIntegerArray cursors = new AtomicIntegerArray(3);  // Next position to try per tier
+        final AtomicInteger available;
+        final int middleRow;  // The row M starts from, relative to this section, may lie outside it
+        volatile FreeRunIndex runs;  // Free runs per row once parties are sold adjacent seats
+
+        // Section of the given rows, scanned in the venue's row order of each tier
+        SeatInventory(int firstRow, int rows, int cols, int[][] rowOrder) {
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.cols = cols;
+            this.seats = rows * cols;
+            this.occupied = new AtomicLongArray((seats + 63) >>> 6);
+            this.available = new AtomicInteger(seats);
+            this.middleRow = rowOrder[1][0] - firstRow;
+
+            for (int tier = 0; tier < 3; tier++) {
+                int[] order = new int[seats];
+                int pos = 0;
+                for (int r : rowOrder[tier]) {
+                    if (r < firstRow || r >= firstRow + rows) {
+                        continue;
+                    }
+                    // H and M sell a row left to right, L right to left
+                    for (int c = 0; c < cols; c++) {
+                        int colNo = tier == 2 ? cols - 1 - c : c;
+                        order[pos++] = (r - firstRow) * cols + colNo;
+                    }
+                }
+                scanOrder[tier] = order;
+                scanPosition[tier] = new int[seats];
+                for (pos = 0; pos < seats; pos++) {
+                    scanPosition[tier][order[pos]] = pos;
+                }
+            }
+        }
+
+        static int tierIndex(char sellerType) {
+            return sellerType == 'H' ? 0 : sellerType == 'M' ? 1 : 2;
+        }
+
+        // Claim the next free seat in the tier's order, returns the seat index or -1 when sold out
+        int claim(char sellerType) {
+            int tier = tierIndex(sellerType);
+            int[] order = scanOrder[tier];
+            int pos = cursors.get(tier);
+
+            while (pos < seats && available.get() > 0) {
+                int seat = order[pos];
+                boolean claimed = tryClaim(seat);
+                // Either way the seat is taken now, so the cursor may move past it
+                cursors.compareAndSet(tier, pos, pos + 1);
+                if (claimed) {
+                    return seat;
+                }
+                pos = Math.max(pos + 1, cursors.get(tier));
+            }
+
+            // A release that lowered the cursor while a claim moved it past the released seat
+            // can leave a free seat behind the cursor, so rescan before reporting sold out
+            for (pos = 0; pos < seats && available.get() > 0; pos++) {
+                if (tryClaim(order[pos])) {
+                    return order[pos];
+                }
+            }
+            return -1;
+        }
+
+        // Claim the next free seat of one row in the tier's order, returns the seat index or -1 when
+        // the row is full. A row's seats are consecutive positions of every tier's order.
+        int claimInRow(int tier, int row) {
+            int[] order = scanOrder[tier];
+            int rowStart = scanPosition[tier][row * cols] / cols * cols;
+            int pos = Math.max(rowStart, cursors.get(tier));
+
+            while (pos < rowStart + cols) {
+                int seat = order[pos];
+                boolean claimed = tryClaim(seat);
+                cursors.compareAndSet(tier, pos, pos + 1);
+                if (claimed) {
+                    return seat;
+                }
+                pos = Math.max(pos + 1, cursors.get(tier));
+            }
+            return -1;
+        }
+
+        // Clear the seat's bit and move every tier's cursor back to it, false when it was free
+        boolean release(int seat) {
+            int word = seat >>> 6;
+            long bit = 1L << (seat & 63);
+            while (true) {
+                long current = occupied.get(word);
+                if ((current & bit) == 0) {
+                    return false;
+                }
+                if (occupied.compareAndSet(word, current, current & ~bit)) {
+                    break;
+                }
+            }
+            available.incrementAndGet();
+            for (int tier = 0; tier < 3; tier++) {
+                cursors.getAndAccumulate(tier, scanPosition[tier][seat], Math::min);
+            }
+            refresh(seat);
+            return true;
+        }
+
+        // Set the seat's bit, false when another seller got it first
+        boolean tryClaim(int seat) {
+            int word = seat >>> 6;
+            long bit = 1L << (seat & 63);
+            while (true) {
+                long current = occupied.get(word);
+                if ((current & bit) != 0) {
+                    return false;
+                }
+                if (occupied.compareAndSet(word, current, current | bit)) {
+                    available.decrementAndGet();
+                    refresh(seat);
+                    return true;
+                }
+            }
+        }
+
+        // Start keeping the free runs of every row, from the seats sold so far
+        synchronized void indexRuns() {
+            if (runs != null) {
+                return;
+            }
+            FreeRunIndex index = new FreeRunIndex(rows, cols);
+            for (int seat = 0; seat < seats; seat++) {
+                if ((occupied.get(seat >>> 6) & 1L << (seat & 63)) != 0) {
+                    index.set(seat / cols, seat % cols, false);
+                }
+            }
+            runs = index;
+        }
+
+        // Bring the seat's entry in the run index up to date with its bit. The bit is read under
+        // the index's monitor and every change of a bit is followed by a refresh, so the last
+        // refresh of a seat always leaves the index agreeing with it.
+        void refresh(int seat) {
+            FreeRunIndex index = runs;
+            if (index != null) {
+                synchronized (index) {
+                    index.set(seat / cols, seat % cols, (occupied.get(seat >>> 6) & 1L << (seat & 63)) == 0);
+                }
+            }
+        }
+
+        // Row with a block of k free seats that comes first in the tier's order, or -1
+        int groupRow(int tier, int k) {
+            FreeRunIndex index = runs;
+            synchronized (index) {
+                return firstRow(index, tier, k);
+            }
+        }
+
+        int firstRow(FreeRunIndex index, int tier, int k) {
+            if (index.longest() < k) {
+                return -1;
+            }
+            if (tier != 1) {
+                return index.findRow(0, rows, k, tier == 2);
+            }
+            // M sells the middle row, then one row behind and one in front, and so on outwards
+            int behind = index.findRow(Math.max(middleRow, 0), rows, k, false);
+            int front = index.findRow(0, Math.min(middleRow, rows), k, true);
+            if (behind == -1 || front == -1) {
+                return behind == -1 ? front : behind;
+            }
+            return behind - middleRow <= middleRow - front ? behind : front;
+        }
+
+        // Claim k adjacent seats of one row, the first block in the tier's order, returns the first
+        // seat of the block (the lowest column) or -1 when no row has k free seats side by side.
+        // The index names a block, and its seats are then claimed by their bits as single seats
+        // are. A single sale that took one of them a moment ago gives the block back and marks
+        // the seat, and the next block is tried.
+        int claimGroup(char sellerType, int k) {
+            int tier = tierIndex(sellerType);
+            FreeRunIndex index = runs;
+            synchronized (index) {
+                while (true) {
+                    int row = firstRow(index, tier, k);
+                    if (row == -1) {
+                        return -1;
+                    }
+                    int first = row * cols + index.findBlock(row, k, tier == 2);
+                    int claimed = 0;
+                    while (claimed < k && tryClaim(first + claimed)) {
+                        claimed++;
+                    }
+                    if (claimed == k) {
+                        return first;
+                    }
+                    refresh(first + claimed);
+                    for (int i = 0; i < claimed; i++) {
+                        release(first + i);
+                    }
+                }
+            }
+        }
+    }
+
+    // Free Run Index Structure
+    // Longest run of free seats per row of one section, for parties that want adjacent seats.
+    // Every row is a segment tree over its columns whose nodes keep the free run at their left
+    // edge, at their right edge and the longest one inside, and a max tree over the rows keeps each
+    // row's longest run. Finding the first row in a tier's order with room for k seats, and the
+    // first block of k in that row, are both O(log n). The owner keeps it under its own monitor.
+    static class FreeRunIndex {
+        final int rows, cols;
+        final int leaves;  // Columns rounded up to a power of two, padding columns count as taken
+        final int rowLeaves;  // Rows rounded up to a power of two
+        final int[] prefix, suffix, best;  // Node i of row r is at r * 2 * leaves + i
+        final int[] rowBest;  // Max tree over the rows' longest runs
+
+        // Index of a section whose seats are all free
+        FreeRunIndex(int rows, int cols) {
+            this.rows = rows;
+            this.cols = cols;
+            leaves = Integer.highestOneBit(Math.max(1, cols - 1)) << 1;
+            rowLeaves = Integer.highestOneBit(Math.max(1, rows - 1)) << 1;
+            prefix = new int[rows * 2 * leaves];
+            suffix = new int[rows * 2 * leaves];
+            best = new int[rows * 2 * leaves];
+            rowBest = new int[2 * rowLeaves];
+            for (int r = 0; r < rows; r++) {
+                int base = r * 2 * leaves;
+                for (int c = 0; c < cols; c++) {
+                    prefix[base + leaves + c] = suffix[base + leaves + c] = best[base + leaves + c] = 1;
+                }
+                for (int node = leaves - 1; node >= 1; node--) {
+                    pull(base, node, leaves / Integer.highestOneBit(node));
+                }
+                rowBest[rowLeaves + r] = best[base + 1];
+            }
+            for (int node = rowLeaves - 1; node >= 1; node--) {
+                rowBest[node] = Math.max(rowBest[2 * node], rowBest[2 * node + 1]);
+            }
+        }
+
+        // Recompute a node spanning len columns from its two children
+        void pull(int base, int node, int len) {
+            int half = len >> 1;
+            int left = base + 2 * node, right = left + 1;
+            prefix[base + node] = prefix[left] == half ? half + prefix[right] : prefix[left];
+            suffix[base + node] = suffix[right] == half ? half + suffix[left] : suffix[right];
+            best[base + node] = Math.max(Math.max(best[left], best[right]), suffix[left] + prefix[right]);
+        }
+
+        // Mark one seat free or taken
+        void set(int row, int col, boolean free) {
+            int base = row * 2 * leaves;
+            int node = leaves + col;
+            prefix[base + node] = suffix[base + node] = best[base + node] = free ? 1 : 0;
+            for (int len = 2; node > 1; len <<= 1) {
+                node >>= 1;
+                pull(base, node, len);
+            }
+            node = rowLeaves + row;
+            rowBest[node] = best[base + 1];
+            for (node >>= 1; node >= 1; node >>= 1) {
+                rowBest[node] = Math.max(rowBest[2 * node], rowBest[2 * node + 1]);
+            }
+        }
+
+        // Longest free run anywhere in the section
+        int longest() {
+            return rowBest[1];
+        }
+
+        // First row in [from, to) with a free run of k, the last one when last is set, or -1
+        int findRow(int from, int to, int k, boolean last) {
+            return findRow(1, 0, rowLeaves, from, to, k, last);
+        }
+
+        int findRow(int node, int lo, int len, int from, int to, int k, boolean last) {
+            if (lo >= to || lo + len <= from || rowBest[node] < k) {
+                return -1;
+            }
+            if (len == 1) {
+                return lo;
+            }
+            int half = len >> 1;
+            int found = last ? findRow(2 * node + 1, lo + half, half, from, to, k, true) : findRow(2 * node, lo, half, from, to, k, false);
+            if (found == -1) {
+                found = last ? findRow(2 * node, lo, half, from, to, k, true) : findRow(2 * node + 1, lo + half, half, from, to, k, false);
+            }
+            return found;
+        }
+
+        // First column of the leftmost block of k free seats in the row, or of the rightmost block
+        // when fromRight is set, -1 when the row has none
+        int findBlock(int row, int k, boolean fromRight) {
+            int base = row * 2 * leaves;
+            if (best[base + 1] < k) {
+                return -1;
+            }
+            int node = 1, lo = 0;
+            for (int len = leaves; len > 1; len >>= 1) {
+                int half = len >> 1;
+                int left = base + 2 * node, right = left + 1;
+                if (!fromRight) {
+                    if (best[left] >= k) {
+                        node = 2 * node;
+                        continue;
+                    }
+                    if (suffix[left] + prefix[right] >= k) {
+                        return lo + half - suffix[left];
+                    }
+                    node = 2 * node + 1;
+                    lo += half;
+                } else {
+                    if (best[right] >= k) {
+                        node = 2 * node + 1;
+                        lo += half;
+                        continue;
+                    }
+                    if (suffix[left] + prefix[right] >= k) {
+                        return lo + half + prefix[right] - k;
+                    }
+                    node = 2 * node;
+                }
+            }
+            return lo;
+        }
+    }
+
+    // Inventory Service Structure
+    // Seat inventory of many concerts behind a reserve/release API keyed by concert id. Concerts
+    // are spread over partitions by id. A partition owns its concerts and runs every request for
+    // them on its own single-thread executor, so partitions share neither locks nor threads, and
+    // the requests of one concert apply one at a time in the order they were submitted.
+    static class InventoryService {
+        final Partition[] partitions;
+        final int rows, cols, sections;
+
+        // One partition of concerts, its maps and counters are only touched by its executor
+        static class Partition {
+            final ExecutorService executor;
+            final Map<Integer, Venue> concerts = new HashMap<>();
+            long reserved = 0;
+            long soldOut = 0;  // Reservations that found the concert sold out
+            long released = 0;
+
+            Partition(int index) {
+                executor = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "inventory-partition-" + index);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+
+        InventoryService(int shards, int rows, int cols, int sections) {
+            this.rows = rows;
+            this.cols = cols;
+            this.sections = sections;
+            partitions = new Partition[shards];
+            for (int i = 0; i < shards; i++) {
+                partitions[i] = new Partition(i);
+            }
+        }
+
+        Partition partitionOf(int concertId) {
+            // Spread consecutive ids, so shows added together don't land on neighbouring partitions only
+            return partitions[Math.floorMod(concertId * 0x9E3779B9, partitions.length)];
+        }
+
+        // Reserve the next seat of the tier's order at a concert, completes with the seat index
+        // (row * cols + col) or -1 when the concert is sold out. Unknown concerts open on first use.
+        CompletableFuture<Integer> reserve(int concertId, char sellerType) {
+            return reserve(concertId, sellerType, 1);
+        }
+
+        // Reserve a block of k adjacent seats in one row, completes with the seat index of its
+        // lowest column or -1 when no row of the concert has k free seats together
+        CompletableFuture<Integer> reserve(int concertId, char sellerType, int k) {
+            Partition partition = partitionOf(concertId);
+            return CompletableFuture.supplyAsync(() -> {
+                Venue venue = partition.concerts.computeIfAbsent(concertId, id -> new Venue(rows, cols, sections));
+                if (k > 1) {
+                    venue.indexRuns();
+                }
+                int seat = venue.claimGroup(sellerType, k);
+                if (seat == -1) {
+                    partition.soldOut++;
+                } else {
+                    partition.reserved++;
+                }
+                return seat;
+            }, partition.executor);
+        }
+
+        // Give a reserved seat back, completes with false when the seat was not reserved
+        CompletableFuture<Boolean> release(int concertId, int seat) {
+            Partition partition = partitionOf(concertId);
+            return CompletableFuture.supplyAsync(() -> {
+                Venue venue = partition.concerts.get(concertId);
+                boolean released = venue != null && venue.release(seat);
+                if (released) {
+                    partition.released++;
+                }
+                return released;
+            }, partition.executor);
+        }
+
+        // Stop the partitions once their queued requests are done, after which the counters are final
+        void close() throws InterruptedException {
+            for (Partition partition : partitions) {
+                partition.executor.shutdown();
+            }
+            for (Partition partition : partitions) {
+                partition.executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        }
+    }
+
+    // Load Generator Structure
+    // Drives an InventoryService with one seller simulation per concert, all running at once, each
+    // reserving its seats from the service instead of a venue of its own, and reports the
+    // reservation throughput as the number of shards grows.
+    static class LoadGenerator {
+        final Main template;
+        final int concerts;
+        final int[] shardCounts;
+
+        LoadGenerator(Main template, int concerts, int[] shardCounts) {
+            this.template = template;
+            this.concerts = concerts;
+            this.shardCounts = shardCounts;
+        }
+
+        void run() throws IOException {
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            System.out.printf("%d concerts of %d x %d seats, %d sellers and N = %d per concert, %s engine on %d workers, seed %d%n",
+                    concerts, template.concertRows, template.concertCols, template.totalSellers, template.N, template.engine,
+                    pool.getParallelism(), template.seed);
+            System.out.println(" ---------------------------------------------------------------------------");
+            System.out.printf("| %6s | %10s | %10s | %9s | %12s | %8s |%n", "Shards", "Reserved", "Sold out", "Seconds", "Reserves/s", "Speedup");
+            System.out.println(" ---------------------------------------------------------------------------");
+
+            // An untimed pass first, so the JIT has compiled the sale path before anything is measured
+            measure(shardCounts[0]);
+            double baseline = 0;
+            for (int shards : shardCounts) {
+                long[] counts = new long[2];
+                double seconds = measure(shards, counts);
+                double rate = (counts[0] + counts[1]) / seconds;
+                if (baseline == 0) {
+                    baseline = rate;
+                }
+                System.out.printf("| %6d | %10d | %10d | %9.3f | %12.0f | %7.2fx |%n", shards, counts[0], counts[1], seconds, rate, rate / baseline);
+            }
+            System.out.println(" ---------------------------------------------------------------------------");
+        }
+
+        double measure(int shards) throws IOException {
+            return measure(shards, new long[2]);
+        }
+
+        // Sell every concert once against a service of the given shards, returns the seconds it took
+        // and leaves the reservations and the sold-out answers in counts
+        double measure(int shards, long[] counts) throws IOException {
+            InventoryService service = new InventoryService(shards, template.concertRows, template.concertCols, template.concertSections);
+            SplittableRandom concertSeeds = new SplittableRandom(template.seed);
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int concertId = 0; concertId < concerts; concertId++) {
+                Main sim = template.copy();
+                sim.seed = concertSeeds.nextLong();
+                sim.inventory = service;
+                sim.concertId = concertId;
+                tasks.add(() -> {
+                    sim.runQuiet();
+                    return null;
+                });
+            }
+
+            long start = System.nanoTime();
+            for (Future<Void> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                try {
+                    result.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException("Concert failed", e);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            try {
+                service.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (InventoryService.Partition partition : service.partitions) {
+                counts[0] += partition.reserved;
+                counts[1] += partition.soldOut;
+            }
+            return seconds;
+        }
+    }
+
+    // Thread-related variables
+    Thread[] sellerThreads;
+    Seller[] sellers;
+    int sellerCount = 0;  // Sellers created so far, index of the next one
+    TickClock clock;
+
+    // Flight Recorder Structure
+    // JDK Flight Recorder events for where a run spends its time: seat searches, sale commits, the
+    // sellers' waits at the tick barrier and the depth of each seller's queue. An event type that
+    // is not enabled costs one flag check, and the JIT removes the unused event object, so the
+    // hooks stay in every run. --jfr=file records them, with thread parks and monitor waits, and
+    // prints a per-tier summary of the recording.
+    static class Flight {
+        @Name("concert.SeatSearch")
+        @Label("Seat Search")
+        @Category("Concert")
+        static class SeatSearch extends jdk.jfr.Event {
+            @Label("Tier")
+            char tier;
+            @Label("Party")
+            int party;
+            @Label("Seat")
+            int seat;  // First seat of the block, -1 when the tier's seats are gone
+        }
+
+        @Name("concert.SaleCommit")
+        @Label("Sale Commit")
+        @Category("Concert")
+        static class SaleCommit extends jdk.jfr.Event {
+            @Label("Tier")
+            char tier;
+            @Label("Seller")
+            int sellerNo;
+            @Label("Minute")
+            int minute;
+            @Label("Seat")
+            int seat;  // -1 when sold out or the customer walked away
+        }
+
+        @Name("concert.TickWait")
+        @Label("Tick Barrier Wait")
+        @Category("Concert")
+        static class TickWait extends jdk.jfr.Event {
+            @Label("Tier")
+            char tier;
+            @Label("Seller")
+            int sellerNo;
+            @Label("Minute")
+            int minute;
+            @Label("Served")
+            boolean served;  // Waiting for the other sellers to serve the minute, not for it to start
+        }
+
+        @Name("concert.QueueDepth")
+        @Label("Queue Depth")
+        @Category("Concert")
+        static class QueueDepth extends jdk.jfr.Event {
+            @Label("Tier")
+            char tier;
+            @Label("Seller")
+            int sellerNo;
+            @Label("Minute")
+            int minute;
+            @Label("Depth")
+            int depth;
+        }
+
+        static final String[] contention = {"jdk.ThreadPark", "jdk.JavaMonitorEnter", "jdk.JavaMonitorWait"};
+
+        // Start recording the simulation's events, every one of them, and contention over 10 us
+        static Recording start() {
+            Recording recording = new Recording();
+            recording.setName("concert");
+            for (Class<? extends jdk.jfr.Event> type : Arrays.asList(SeatSearch.class, SaleCommit.class, TickWait.class, QueueDepth.class)) {
+                recording.enable(type).withoutThreshold();
+            }
+            for (String type : contention) {
+                recording.enable(type).withThreshold(Duration.ofNanos(10_000)).withStackTrace();
+            }
+            recording.start();
+            return recording;
+        }
+
+        // Write the stopped recording to the file and print what it holds per tier
+        static void finish(Recording recording, String file) throws IOException {
+            Path path = Paths.get(file);
+            recording.dump(path);
+            recording.close();
+
+            String[] names = {"concert.SeatSearch", "concert.SaleCommit", "concert.TickWait", "concert.QueueDepth"};
+            long[][] count = new long[3][names.length];
+            long[][] total = new long[3][names.length];  // Nanoseconds, queue depths for QueueDepth
+            long[][] max = new long[3][names.length];
+            Map<String, long[]> waits = new HashMap<>();  // Contention per event type: count, nanoseconds
+            for (RecordedEvent event : RecordingFile.readAllEvents(path)) {
+                String name = event.getEventType().getName();
+                int kind = Arrays.asList(names).indexOf(name);
+                if (kind == -1) {
+                    long[] sum = waits.computeIfAbsent(name, k -> new long[2]);
+                    sum[0]++;
+                    sum[1] += event.getDuration().toNanos();
+                    continue;
+                }
+                int tier = SeatInventory.tierIndex(event.getChar("tier"));
+                long value = name.equals("concert.QueueDepth") ? event.getInt("depth") : event.getDuration().toNanos();
+                count[tier][kind]++;
+                total[tier][kind] += value;
+                max[tier][kind] = Math.max(max[tier][kind], value);
+            }
+
+            System.out.println("Flight recording " + file);
+            System.out.println(" -----------------------------------------------------------------------------------------------------");
+            System.out.println("|    | Seat search n / avg / max us | Sale commit n / avg / max us | Tick wait total ms / max us | Queue avg / max |");
+            System.out.println(" -----------------------------------------------------------------------------------------------------");
+            for (int tier = 0; tier < 3; tier++) {
+                long[] n = count[tier], sum = total[tier], top = max[tier];
+                System.out.printf("| %c  | %9d %8.2f %8.1f | %9d %8.2f %8.1f | %12.2f %12.1f | %7.2f %6d |%n", "HML".charAt(tier),
+                        n[0], average(sum[0], n[0]) / 1e3, top[0] / 1e3, n[1], average(sum[1], n[1]) / 1e3, top[1] / 1e3,
+                        sum[2] / 1e6, top[2] / 1e3, average(sum[3], n[3]), top[3]);
+            }
+            System.out.println(" -----------------------------------------------------------------------------------------------------");
+            for (String name : contention) {
+                long[] sum = waits.getOrDefault(name, new long[2]);
+                System.out.printf("| %-20s | %8d over 10 us | %10.2f ms |%n", name, sum[0], sum[1] / 1e6);
+            }
+        }
+
+        static double average(long sum, long n) {
+            return n == 0 ? 0.0 : (double) sum / n;
+        }
+    }
+
+    // Seat Log Structure
+    // Write-ahead log of the seats sold: fixed-width records in a pre-allocated memory-mapped
+    // file. A seller takes a record slot with one atomic increment, writes the record and
+    // publishes it by writing its sequence number last, so appending takes neither a lock nor a
+    // system call. A committer thread forces the pages of every record published since its last
+    // pass in one go (group commit) and then moves the durable count in the header on; sellers
+    // never wait for it. Opening an existing log finds the intact records, in order, up to the
+    // first one that is missing or torn, and clears the sequence numbers of every record after
+    // it so a stale one is neither recovered by a later open nor taken as published. Once the
+    // log is full further sales are counted as dropped rather than logged.
+    static class SeatLog {
+        static final int magic = 0x544b574c;  // "TKWL"
+        static final int headerBytes = 64;  // magic, record size, rows, cols, capacity, durable records
+        static final int recordBytes = 32;  // sequence, seat, time, seller type and no, queued at, customer no, response (-1 past a party's first seat), checksum
+        static final long commitNanos = 1_000_000;  // Longest a published record waits for its group commit
+        static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final int capacity;  // Records the file has room for
+        final int recovered;  // Intact records found when the log was opened
+        final int damaged;  // Records the header counted as durable that were found torn
+        final AtomicInteger dropped = new AtomicInteger();  // Sales not logged because the log was full
+        final AtomicInteger reserved;  // Record slots handed out
+        final Thread committer;
+        volatile boolean closing = false;
+        int durable;  // Records forced to disk, only the committer moves it
+        long groupCommits = 0;
+
+        // Open the log of a rows x cols venue, creating it with room for capacity records
+        SeatLog(String file, int rows, int cols, int capacity) throws IOException {
+            boolean exists = new File(file).length() > 0;
+            channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (exists) {
+                capacity = (int) ((channel.size() - headerBytes) / recordBytes);
+            }
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerBytes + (long) capacity * recordBytes);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            this.capacity = capacity;
+
+            if (exists) {
+                if (map.getInt(0) != magic || map.getInt(4) != recordBytes) {
+                    throw new IOException(file + " is not a seat log");
+                }
+                if (map.getInt(8) != rows || map.getInt(12) != cols) {
+                    throw new IOException(file + " logs a " + map.getInt(8) + " x " + map.getInt(12) + " venue, not " + rows + " x " + cols);
+                }
+            } else {
+                map.putInt(0, magic);
+                map.putInt(4, recordBytes);
+                map.putInt(8, rows);
+                map.putInt(12, cols);
+                map.putInt(16, capacity);
+                map.putInt(20, 0);
+                map.force(0, headerBytes);
+            }
+
+            int intact = 0;
+            while (intact < capacity && isIntact(intact)) {
+                intact++;
+            }
+            damaged = Math.max(0, map.getInt(20) - intact);
+            boolean cleared = false;
+            for (int record = intact; record < capacity; record++) {
+                if (map.getInt(offset(record)) != 0) {
+                    map.putInt(offset(record), 0);
+                    cleared = true;
+                }
+            }
+            if (cleared || damaged > 0) {
+                map.putInt(20, intact);
+                map.force();
+            }
+            recovered = intact;
+            durable = intact;
+            reserved = new AtomicInteger(intact);
+
+            committer = new Thread(this::commit, "seat-log-committer");
+            committer.setDaemon(true);
+            committer.start();
+        }
+
+        static int offset(int record) {
+            return headerBytes + record * recordBytes;
+        }
+
+        static int checksum(int seq, int seat, int time, int seller, int queuedAt, int custNo, int response) {
+            int h = seq * 0x01000193 ^ seat;
+            h = h * 0x01000193 ^ time;
+            h = h * 0x01000193 ^ seller;
+            h = h * 0x01000193 ^ queuedAt;
+            h = h * 0x01000193 ^ custNo;
+            return h * 0x01000193 ^ response;
+        }
+
+        boolean isIntact(int record) {
+            int at = offset(record);
+            return map.getInt(at) == record + 1 && map.getInt(at + 28) == checksum(record + 1, map.getInt(at + 4),
+                    map.getInt(at + 8), map.getInt(at + 12), map.getInt(at + 16), map.getInt(at + 20), map.getInt(at + 24));
+        }
+
+        // Log one sale, safe to call from any number of sellers at once. False, and the sale
+        // counted as dropped, when the log is full.
+        boolean append(int seat, int time, char sellerType, int sellerNo, int queuedAt, int custNo, int response) {
+            int record = reserved.getAndIncrement();
+            if (record >= capacity) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            int at = offset(record);
+            int seller = sellerType << 24 | sellerNo;
+            map.putInt(at + 4, seat);
+            map.putInt(at + 8, time);
+            map.putInt(at + 12, seller);
+            map.putInt(at + 16, queuedAt);
+            map.putInt(at + 20, custNo);
+            map.putInt(at + 24, response);
+            map.putInt(at + 28, checksum(record + 1, seat, time, seller, queuedAt, custNo, response));
+            // The sequence number goes last, the committer only looks at records that have one
+            INT.setRelease(map, at, record + 1);
+            return true;
+        }
+
+        int seat(int record) {
+            return map.getInt(offset(record) + 4);
+        }
+
+        int time(int record) {
+            return map.getInt(offset(record) + 8);
+        }
+
+        char sellerType(int record) {
+            return (char) (map.getInt(offset(record) + 12) >>> 24);
+        }
+
+        int sellerNo(int record) {
+            return map.getInt(offset(record) + 12) & 0xffffff;
+        }
+
+        int queuedAt(int record) {
+            return map.getInt(offset(record) + 16);
+        }
+
+        int custNo(int record) {
+            return map.getInt(offset(record) + 20);
+        }
+
+        int response(int record) {
+            return map.getInt(offset(record) + 24);
+        }
+
+        // Committer thread: every commitNanos, force all records published in an unbroken run
+        // since the last pass, then the header that counts them
+        void commit() {
+            while (true) {
+                boolean last = closing;
+                int end = durable;
+                int limit = Math.min(reserved.get(), capacity);
+                while (end < limit && (int) INT.getAcquire(map, offset(end)) == end + 1) {
+                    end++;
+                }
+                if (end > durable) {
+                    map.force(offset(durable), (end - durable) * recordBytes);
+                    map.putInt(20, end);
+                    map.force(0, headerBytes);
+                    durable = end;
+                    groupCommits++;
+                }
+                if (last) {
+                    return;
+                }
+                LockSupport.parkNanos(commitNanos);
+            }
+        }
+
+        // Commit whatever is left and close the file
+        void close() throws IOException {
+            closing = true;
+            LockSupport.unpark(committer);
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    // Hold Wheel Structure
+    // Timed seat holds on a hierarchical hashed timing wheel with one-minute ticks. Level 0 has a
+    // slot for each of the next 64 minutes, every level above a slot for 64 slots of the level
+    // below, and the holds of a higher slot move down when the clock reaches it, so each hold
+    // costs O(1) amortized whatever its length. A hold is known by its seat: the bucket lists are
+    // linked through a per-seat array and holding allocates nothing. Sellers push onto a bucket
+    // lock-free during a tick, the clock advances the wheel only between ticks. A confirmed hold
+    // stays in its bucket and is skipped when the bucket comes due.
+    static class HoldWheel {
+        static final int slotBits = 6;
+        static final int slots = 1 << slotBits;
+        static final int levels = 4;  // 64^4 minutes ahead at most
+        static final int FREE = 0;
+        static final int HELD = 1;
+        static final int SOLD = 2;
+
+        final AtomicIntegerArray state;  // FREE, HELD or SOLD per seat
+        final int[] expiresAt;  // Minute a seat's hold runs out
+        final int[] next;  // Next seat in the same bucket, -1 at the end
+        final int[] holderTier, holderSeller, holderQueuedAt, holderCust;  // Whose hold it is, for the log
+        final AtomicIntegerArray buckets = new AtomicIntegerArray(levels * slots);  // First seat of each bucket
+        int now = 0;  // Minute the wheel has been advanced to
+
+        HoldWheel(int seats) {
+            state = new AtomicIntegerArray(seats);
+            expiresAt = new int[seats];
+            next = new int[seats];
+            holderTier = new int[seats];
+            holderSeller = new int[seats];
+            holderQueuedAt = new int[seats];
+            holderCust = new int[seats];
+            for (int b = 0; b < buckets.length(); b++) {
+                buckets.set(b, -1);
+            }
+        }
+
+        // Hold a claimed seat until the given minute
+        void hold(int seat, int until, int tier, int sellerNo, int queuedAt, int custNo) {
+            expiresAt[seat] = Math.max(until, now + 1);
+            holderTier[seat] = tier;
+            holderSeller[seat] = sellerNo;
+            holderQueuedAt[seat] = queuedAt;
+            holderCust[seat] = custNo;
+            state.set(seat, HELD);
+            insert(seat);
+        }
+
+        // True while the seat is held for the given customer
+        boolean isHeldBy(int seat, int tier, int queuedAt, int custNo) {
+            return state.get(seat) == HELD && holderTier[seat] == tier && holderQueuedAt[seat] == queuedAt && holderCust[seat] == custNo;
+        }
+
+        // Turn the hold into a sale, false when it already ran out
+        boolean confirm(int seat) {
+            return state.compareAndSet(seat, HELD, SOLD);
+        }
+
+        // Let a standing hold lapse early, false when it is no longer held. Only once no more holds
+        // are taken: the seat stays linked in its bucket until the bucket is emptied.
+        boolean lapse(int seat) {
+            return state.compareAndSet(seat, HELD, FREE);
+        }
+
+        // Let every hold still standing lapse, for the end of the sale, handing their seats to the
+        // listener. Returns how many did.
+        int expireAll(IntConsumer expired) {
+            int count = 0;
+            for (int bucket = 0; bucket < buckets.length(); bucket++) {
+                int seat = buckets.getAndSet(bucket, -1);
+                while (seat != -1) {
+                    int following = next[seat];
+                    if (state.compareAndSet(seat, HELD, FREE)) {
+                        expired.accept(seat);
+                        count++;
+                    }
+                    seat = following;
+                }
+            }
+            return count;
+        }
+
+        // Push the seat onto the bucket of the lowest level whose 64 slots reach its expiry
+        void insert(int seat) {
+            int delta = expiresAt[seat] - now;
+            int level = 0;
+            while (level < levels - 1 && delta >= 1 << (slotBits * (level + 1))) {
+                level++;
+            }
+            int bucket = level * slots + ((expiresAt[seat] >>> (slotBits * level)) & (slots - 1));
+            while (true) {
+                int head = buckets.get(bucket);
+                next[seat] = head;
+                if (buckets.compareAndSet(bucket, head, seat)) {
+                    return;
+                }
+            }
+        }
+
+        // Move the clock up to the given minute, handing every seat whose hold ran out to the
+        // listener. Returns how many did.
+        int advance(int time, IntConsumer expired) {
+            int count = 0;
+            while (now < time) {
+                now++;
+                // Holds of a higher slot that comes due move down, they all expire within it
+                for (int level = levels - 1; level > 0; level--) {
+                    if ((now & ((1 << (slotBits * level)) - 1)) == 0) {
+                        int seat = buckets.getAndSet(level * slots + ((now >>> (slotBits * level)) & (slots - 1)), -1);
+                        while (seat != -1) {
+                            int following = next[seat];
+                            if (state.get(seat) == HELD) {
+                                insert(seat);
+                            }
+                            seat = following;
+                        }
+                    }
+                }
+                int seat = buckets.getAndSet(now & (slots - 1), -1);
+                while (seat != -1) {
+                    int following = next[seat];
+                    if (state.compareAndSet(seat, HELD, FREE)) {
+                        expired.accept(seat);
+                        count++;
+                    }
+                    seat = following;
+                }
+            }
+            return count;
+        }
+    }
+
+    // Seat Chart Structure
+    // Seat labels as the sellers write them, plus immutable snapshots for readers. Sellers never
+    // wait on readers, they set a label and mark its row dirty. A snapshot shares every row that
+    // did not change since the one before it and redraws only the changed cells of the rows that
+    // did, so taking one costs the sales since the last snapshot, not the size of the venue.
+    static class SeatChart {
+        static final String EMPTY = "-";
+        static final int cellWidth = 12;  // Labels are left-aligned in cells this wide, tab separated
+
+        final int rows;
+        final int cols;
+        final AtomicReferenceArray<String> labels;
+        final AtomicLongArray dirtyRows;  // One bit per row written since the latest snapshot
+        volatile Snapshot latest;
+
+        SeatChart(int rows, int cols) {
+            this.rows = rows;
+            this.cols = cols;
+            this.labels = new AtomicReferenceArray<>(rows * cols);
+            this.dirtyRows = new AtomicLongArray((rows + 63) / 64);
+
+            String[] emptyRow = new String[cols];
+            Arrays.fill(emptyRow, EMPTY);
+            String emptyLine = render(emptyRow);
+            String[][] cells = new String[rows][];
+            String[] lines = new String[rows];
+            for (int r = 0; r < rows; r++) {
+                cells[r] = emptyRow;
+                lines[r] = emptyLine;
+                for (int c = 0; c < cols; c++) {
+                    labels.set(r * cols + c, EMPTY);
+                }
+            }
+            latest = new Snapshot(0, cells, lines);
+        }
+
+        // Label a seat, called by the seller that claimed it
+        void assign(int seat, String label) {
+            labels.set(seat, label);
+            int row = seat / cols;
+            dirtyRows.getAndAccumulate(row >>> 6, 1L << (row & 63), (bits, bit) -> bits | bit);
+        }
+
+        // Publish a snapshot holding every label written so far. Only readers take turns here.
+        synchronized Snapshot snapshot() {
+            Snapshot previous = latest;
+            String[][] cells = null;
+            String[] lines = null;
+            for (int word = 0; word < dirtyRows.length(); word++) {
+                long bits = dirtyRows.get(word) == 0 ? 0 : dirtyRows.getAndSet(word, 0);
+                while (bits != 0) {
+                    int row = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    if (cells == null) {
+                        cells = previous.cells.clone();
+                        lines = previous.lines.clone();
+                    }
+                    redraw(row, previous, cells, lines);
+                }
+            }
+            if (cells == null) {
+                return previous;
+            }
+            latest = new Snapshot(previous.version + 1, cells, lines);
+            return latest;
+        }
+
+        // Copy one dirty row and patch its changed cells into the previous rendering of the row
+        void redraw(int row, Snapshot previous, String[][] cells, String[] lines) {
+            String[] before = previous.cells[row];
+            String[] after = new String[cols];
+            boolean patchable = previous.lines[row].length() == cols * (cellWidth + 1) - 1;
+            char[] line = patchable ? previous.lines[row].toCharArray() : null;
+            for (int c = 0; c < cols; c++) {
+                after[c] = labels.get(row * cols + c);
+                if (after[c] == before[c]) {
+                    continue;
+                }
+                if (patchable && after[c].length() <= cellWidth) {
+                    int at = c * (cellWidth + 1);
+                    after[c].getChars(0, after[c].length(), line, at);
+                    Arrays.fill(line, at + after[c].length(), at + cellWidth, ' ');
+                } else {
+                    patchable = false;
+                }
+            }
+            cells[row] = after;
+            lines[row] = patchable ? new String(line) : render(after);
+        }
+
+        // One chart line, the same as printing every cell with %-12s
+        static String render(String[] row) {
+            StringBuilder line = new StringBuilder(row.length * (cellWidth + 1));
+            for (int c = 0; c < row.length; c++) {
+                if (c != 0) {
+                    line.append('\t');
+                }
+                line.append(row[c]);
+                for (int pad = row[c].length(); pad < cellWidth; pad++) {
+                    line.append(' ');
+                }
+            }
+            return line.toString();
+        }
+
+        // Immutable chart as of one point in the sale
+        static class Snapshot {
+            final long version;  // Snapshots published before this one
+            final String[][] cells;
+            final String[] lines;  // Rendered rows
+
+            Snapshot(long version, String[][] cells, String[] lines) {
+                this.version = version;
+                this.cells = cells;
+                this.lines = lines;
+            }
+
+            StringBuilder appendTo(StringBuilder out) {
+                for (String line : lines) {
+                    out.append(line).append(System.lineSeparator());
+                }
+                return out;
+            }
+
+            // Append " row,col label" for every seat that changed since the older snapshot,
+            // returns how many did. Rows the two snapshots share are skipped without a look.
+            int diff(Snapshot older, StringBuilder out) {
+                int changed = 0;
+                for (int r = 0; r < cells.length; r++) {
+                    if (cells[r] == older.cells[r]) {
+                        continue;
+                    }
+                    for (int c = 0; c < cells[r].length; c++) {
+                        if (!cells[r][c].equals(older.cells[r][c])) {
+                            out.append(' ').append(r).append(',').append(c).append(' ').append(cells[r][c]);
+                            changed++;
+                        }
+                    }
+                }
+                return changed;
+            }
+        }
+    }
+
+    // Tick Clock Structure
+    // Sellers park on a tiered Phaser between clock ticks, so neither the main thread nor
+    // the sellers spin, and a seller that has not reached its wait yet can't miss a tick.
+    // Every tick is two phases: the main thread releases the sellers into the tick, then
+    // waits for all of them to arrive again once they have served it.
+    static class TickClock {
+        static final int partiesPerPhaser = 256;  // Leaf size of the phaser tree
+
+        final Phaser root = new Phaser(1);  // The main thread is the root's own party
+        Phaser leaf = null;  // Leaf phaser new sellers are registered on
+        final long[] tickNanos;  // Wall-clock duration of each tick
+        int ticks = 0;
+
+        TickClock(int duration) {
+            tickNanos = new long[duration];
+        }
+
+        // Register a seller before any seller thread starts, returns the phaser it parks on
+        Phaser register() {
+            if (leaf == null || leaf.getRegisteredParties() >= partiesPerPhaser) {
+                leaf = new Phaser(root);
+            }
+            leaf.register();
+            return leaf;
+        }
+
+        // Run one clock tick: release the sellers and wait until all of them served it
+        void tick() {
+            long start = System.nanoTime();
+            root.arriveAndAwaitAdvance();
+            root.arriveAndAwaitAdvance();
+            recordTick(start);
+        }
+
+        // Record a tick that started at the given System.nanoTime()
+        void recordTick(long start) {
+            tickNanos[ticks++] = System.nanoTime() - start;
+        }
+
+        // Release the sellers one last time and wait until every one of them closed its window
+        void close() {
+            root.arriveAndAwaitAdvance();
+            root.arriveAndAwaitAdvance();
+        }
+
+        // Seller side: park until the clock starts the next tick
+        static void awaitTick(Phaser phaser) {
+            phaser.arriveAndAwaitAdvance();
+        }
+
+        // Seller side: report the current tick as served
+        static void tickServed(Phaser phaser) {
+            phaser.arriveAndAwaitAdvance();
+        }
+
+        // Seller side: leave the clock once the window is closed
+        static void leave(Phaser phaser) {
+            phaser.arriveAndDeregister();
+        }
+
+        void printTickTimes() {
+            long total = 0, max = 0;
+            for (int t = 0; t < ticks; t++) {
+                total += tickNanos[t];
+                max = Math.max(max, tickNanos[t]);
+            }
+            System.out.printf("| Clock ticks: %d | Avg tick: %.1f us | Max tick: %.1f us | Total: %.2f ms\n",
+                    ticks, ticks == 0 ? 0.0 : total / 1000.0 / ticks, max / 1000.0, total / 1000000.0);
+            System.out.println(" ------------------------------------------------");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Main sim = new Main();
+        boolean engineGiven = false;
+
+        // Parse command line arguments: the number of customers per seller and engine options
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                sim.engine = arg.substring("--engine=".length());
+                engineGiven = true;
+            } else if (arg.startsWith("--minutes=")) {
+                sim.simulationDuration = Integer.parseInt(arg.substring("--minutes=".length()));
+            } else if (arg.startsWith("--rows=")) {
+                sim.concertRows = Integer.parseInt(arg.substring("--rows=".length()));
+            } else if (arg.startsWith("--cols=")) {
+                sim.concertCols = Integer.parseInt(arg.substring("--cols=".length()));
+            } else if (arg.startsWith("--sections=")) {
+                sim.concertSections = Integer.parseInt(arg.substring("--sections=".length()));
+            } else if (arg.startsWith("--log=")) {
+                sim.logMode = arg.substring("--log=".length());
+            } else if (arg.startsWith("--log-file=")) {
+                sim.logFile = arg.substring("--log-file=".length());
+            } else if (arg.startsWith("--decode-trace=")) {
+                EventLog.decode(arg.substring("--decode-trace=".length()));
+                return;
+            } else if (arg.startsWith("--metrics-every=")) {
+                sim.metricsEvery = Integer.parseInt(arg.substring("--metrics-every=".length()));
+            } else if (arg.equals("--selftest")) {
+                selfTest = true;
+            } else if (arg.equals("--bench")) {
+                benchFilter = "";
+            } else if (arg.startsWith("--bench=")) {
+                benchFilter = arg.substring("--bench=".length());
+            } else if (arg.startsWith("--trials=")) {
+                trials = Integer.parseInt(arg.substring("--trials=".length()));
+            } else if (arg.startsWith("--sweep-n=")) {
+                sweepN = parseList(arg.substring("--sweep-n=".length()), ",");
+            } else if (arg.startsWith("--sweep-sellers=")) {
+                String[] triples = arg.substring("--sweep-sellers=".length()).split(",");
+                sweepSellers = new int[triples.length][];
+                for (int i = 0; i < triples.length; i++) {
+                    sweepSellers[i] = parseList(triples[i], ":");
+                }
+            } else if (arg.startsWith("--csv=")) {
+                csvFile = arg.substring("--csv=".length());
+            } else if (arg.startsWith("--arrivals=")) {
+                sim.arrivals = arg.substring("--arrivals=".length());
+            } else if (arg.startsWith("--customers=")) {
+                sim.customerStore = arg.substring("--customers=".length());
+            } else if (arg.startsWith("--chart=")) {
+                sim.chartMode = arg.substring("--chart=".length());
+            } else if (arg.startsWith("--concerts=")) {
+                concerts = Integer.parseInt(arg.substring("--concerts=".length()));
+            } else if (arg.startsWith("--shards=")) {
+                shardCounts = parseList(arg.substring("--shards=".length()), ",");
+            } else if (arg.startsWith("--hold=")) {
+                sim.holdMinutes = Integer.parseInt(arg.substring("--hold=".length()));
+            } else if (arg.startsWith("--abandon=")) {
+                sim.abandonPercent = Integer.parseInt(arg.substring("--abandon=".length()));
+            } else if (arg.startsWith("--party=")) {
+                sim.partyMax = Math.max(1, Integer.parseInt(arg.substring("--party=".length())));
+            } else if (arg.startsWith("--jfr=")) {
+                sim.jfrFile = arg.substring("--jfr=".length());
+            } else if (arg.startsWith("--wal=")) {
+                sim.walFile = arg.substring("--wal=".length());
+            } else if (arg.equals("--steal")) {
+                sim.steal = true;
+            } else if (arg.startsWith("--admit=")) {
+                sim.admission = arg.substring("--admit=".length());
+            } else if (arg.startsWith("--queue-cap=")) {
+                sim.queueCap = Integer.parseInt(arg.substring("--queue-cap=".length()));
+            } else if (arg.startsWith("--seed=")) {
+                sim.seed = Long.parseLong(arg.substring("--seed=".length()));
+            } else if (arg.startsWith("--runtime=")) {
+                sim.runtime = arg.substring("--runtime=".length());
+            } else if (arg.startsWith("--high=")) {
+                sim.highSellerCount = Integer.parseInt(arg.substring("--high=".length()));
+            } else if (arg.startsWith("--medium=")) {
+                sim.mediumSellerCount = Integer.parseInt(arg.substring("--medium=".length()));
+            } else if (arg.startsWith("--low=")) {
+                sim.lowSellerCount = Integer.parseInt(arg.substring("--low=".length()));
+            } else {
+                sim.N = Integer.parseInt(arg);
+            }
+        }
+        if (!sim.engine.equals("threads") && !sim.engine.equals("events")) {
+            throw new IllegalArgumentException("Unknown engine: " + sim.engine);
+        }
+        if (!sim.runtime.equals("platform") && !sim.runtime.equals("virtual") && !sim.runtime.equals("forkjoin")) {
+            throw new IllegalArgumentException("Unknown runtime: " + sim.runtime);
+        }
+        sim.totalSellers = sim.highSellerCount + sim.mediumSellerCount + sim.lowSellerCount;
+
+        if (selfTest) {
+            if (!SelfTest.runAll()) {
+                System.exit(1);
+            }
+            return;
+        }
+        if (benchFilter != null) {
+            Benchmarks.runAll(sim, benchFilter);
+            return;
+        }
+        if (trials > 0) {
+            // Trials run side by side on a fork/join pool, the event engine needs no threads of its own
+            if (!engineGiven) {
+                sim.engine = "events";
+            }
+            new BatchRunner(sim, trials, sweepN, sweepSellers, csvFile).run();
+            return;
+        }
+        if (concerts > 0) {
+            if (!engineGiven) {
+                sim.engine = "events";
+            }
+            if (shardCounts == null) {
+                // Powers of two up to the cores, and the core count itself
+                List<Integer> counts = new ArrayList<>();
+                int cores = Runtime.getRuntime().availableProcessors();
+                for (int shards = 1; shards < cores; shards *= 2) {
+                    counts.add(shards);
+                }
+                counts.add(cores);
+                shardCounts = counts.stream().mapToInt(Integer::intValue).toArray();
+            }
+            new LoadGenerator(sim, concerts, shardCounts).run();
+            return;
+        }
+
+        sim.run();
+    }
+
+    static int[] parseList(String list, String separator) {
+        String[] parts = list.split(separator);
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    // A new simulation with the same parameters, ready to run
+    Main copy() {
+        Main sim = new Main();
+        sim.highSellerCount = highSellerCount;
+        sim.mediumSellerCount = mediumSellerCount;
+        sim.lowSellerCount = lowSellerCount;
+        sim.totalSellers = totalSellers;
+        sim.concertRows = concertRows;
+        sim.concertCols = concertCols;
+        sim.concertSections = concertSections;
+        sim.simulationDuration = simulationDuration;
+        sim.N = N;
+        sim.engine = engine;
+        sim.runtime = runtime;
+        sim.arrivals = arrivals;
+        sim.customerStore = customerStore;
+        sim.chartMode = chartMode;
+        sim.steal = steal;
+        sim.admission = admission;
+        sim.queueCap = queueCap;
+        sim.holdMinutes = holdMinutes;
+        sim.abandonPercent = abandonPercent;
+        sim.partyMax = partyMax;
+        sim.logMode = logMode;
+        sim.logFile = logFile;
+        sim.metricsEvery = metricsEvery;
+        sim.seed = seed;
+        return sim;
+    }
+
+    void setSellerCounts(int high, int medium, int low) {
+        highSellerCount = high;
+        mediumSellerCount = medium;
+        lowSellerCount = low;
+        totalSellers = high + medium + low;
+    }
+
+    // Run one simulation and print its event log and statistics
+    void run() throws IOException {
+        resetSimulation();
+
+        if (walFile != null) {
+            seatLog = new SeatLog(walFile, concertRows, concertCols, concertRows * concertCols);
+            recoverSales();
+        }
+
+        System.out.println("Starting Simulation (seed " + seed + ")");
+        System.out.flush();
+        eventLog = new EventLog(logMode, logFile);
+        if (chartMode.equals("sale")) {
+            // The writer replays the sales into a chart of its own, so each chart is printed
+            // right after its sale in the log, and sellers never wait for one to be drawn
+            eventLog.replay = new SeatChart(concertRows, concertCols);
+        }
+
+        Recording recording = jfrFile == null ? null : Flight.start();
+        runEngine();
+        if (recording != null) {
+            recording.stop();
+        }
+
+        eventLog.close();
+        if (seatLog != null) {
+            seatLog.close();
+            System.out.printf("Seat log %s: %d records, %d appended in %d group commits%n", walFile, seatLog.durable,
+                    seatLog.durable - seatLog.recovered, seatLog.groupCommits);
+            if (seatLog.dropped.get() > 0) {
+                System.out.printf("Seat log %s is full at %d records, %d sales were not logged%n", walFile, seatLog.capacity,
+                        seatLog.dropped.get());
+            }
+        }
+
+        printStatistics();
+        if (clock != null) {
+            clock.printTickTimes();
+        }
+        if (recording != null) {
+            Flight.finish(recording, jfrFile);
+        }
+        if (steal) {
+            printStealGain();
+        }
+    }
+
+    // Rebuild the venue, the chart and the tier counters from the sales of an earlier run. A
+    // record of a seat that is already taken is skipped and reported.
+    void recoverSales() {
+        if (seatLog.damaged > 0) {
+            System.out.printf("Seat log %s: %d committed records were torn and are lost%n", walFile, seatLog.damaged);
+        }
+        if (seatLog.recovered == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        int skipped = 0;
+        for (int record = 0; record < seatLog.recovered; record++) {
+            int seat = seatLog.seat(record);
+            char sellerType = seatLog.sellerType(record);
+            if (seat < 0 || seat >= concertRows * concertCols || !venue.take(seat)) {
+                System.out.printf("Seat log %s: skipped record %d, seat %d is not free%n", walFile, record, seat);
+                skipped++;
+                continue;
+            }
+            seatChart.assign(seat, EventLog.appendCustomer(new StringBuilder(8), sellerType, seatLog.queuedAt(record),
+                    seatLog.custNo(record)).toString());
+            TierMetrics m = metricsFor(sellerType);
+            m.seats.increment();
+            if (seatLog.response(record) < 0) {
+                continue;  // Another seat of a party, the customer is counted with the first
+            }
+            m.arrived.increment();
+            m.recordResponse(seatLog.response(record));
+            m.recordSale(seatLog.time(record));
+        }
+        System.out.printf("Recovered %d sales from %s in %.2f ms%n", seatLog.recovered - skipped, walFile,
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    // Run the same seed again without stealing and print what stealing gained per tier
+    void printStealGain() throws IOException {
+        Main baseline = copy();
+        baseline.steal = false;
+        baseline.runQuiet();
+
+        System.out.println(" ---------------------------------------------------------------------------------------");
+        System.out.println("|    | Stolen | Sold with / without | Turned away with / without | Throughput gain | (same seed)");
+        System.out.println(" ---------------------------------------------------------------------------------------");
+        for (int tier = 0; tier < 3; tier++) {
+            TierMetrics with = tierMetrics[tier];
+            TierMetrics without = baseline.tierMetrics[tier];
+            long sold = with.sold.sum();
+            long soldBefore = without.sold.sum();
+            System.out.printf("| %c  | %6d | %8d / %-8d | %12d / %-12d | %+14.1f%% |%n", with.sellerType, with.stolen.sum(),
+                    sold, soldBefore, with.arrived.sum() - sold, without.arrived.sum() - soldBefore,
+                    soldBefore == 0 ? 0.0 : 100.0 * (sold - soldBefore) / soldBefore);
+        }
+        System.out.println(" ---------------------------------------------------------------------------------------");
+    }
+
+    void runEngine() {
+        if (engine.equals("events")) {
+            runEventEngine();
+        } else {
+            runThreadEngine();
+        }
+        // Holds that would run out after the sale ends give their seats back now
+        if (holds != null && holds.expireAll(seat -> holdExpired(simulationDuration, seat)) > 0) {
+            eventLog.flush();
+        }
+    }
+
+    // Run one simulation without any output, for batches of trials
+    void runQuiet() throws IOException {
+        resetSimulation();
+        eventLog = new EventLog("off", null);
+        runEngine();
+    }
+
+    // Batch Runner Structure
+    // Runs many independent trials of every configuration of a sweep over N and the seller tier
+    // counts. Trials are spread across a fork/join pool, each on its own Main instance, and the
+    // results are aggregated into means with 95% confidence intervals.
+    static class BatchRunner {
+        static final String[] metricNames = {"sold_h", "sold_m", "sold_l", "sold_total", "turned_away", "response", "turnaround", "trial_ms", "stolen"};
+
+        final Main template;
+        final int trials;
+        final int[] ns;
+        final int[][] sellerCounts;
+        final String csvFile;
+
+        BatchRunner(Main template, int trials, int[] ns, int[][] sellerCounts, String csvFile) {
+            this.template = template;
+            this.trials = trials;
+            this.ns = ns != null ? ns : new int[] {template.N};
+            this.sellerCounts = sellerCounts != null ? sellerCounts
+                    : new int[][] {{template.highSellerCount, template.mediumSellerCount, template.lowSellerCount}};
+            this.csvFile = csvFile;
+        }
+
+        void run() throws IOException {
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            StringBuilder csv = new StringBuilder("n,high,medium,low,trials");
+            for (String metric : metricNames) {
+                csv.append(',').append(metric).append("_mean,").append(metric).append("_ci95");
+            }
+            csv.append('\n');
+
+            System.out.printf("%d trials per configuration on %d workers, %s engine, seed %d%n", trials, pool.getParallelism(),
+                    template.engine, template.seed);
+            System.out.println(" ---------------------------------------------------------------------------------------------------------");
+            System.out.printf("| %5s | %-11s | %15s | %15s | %15s | %15s | %15s |%n",
+                    "N", "H:M:L", "Seats sold", "Turned away", "Response", "Turnaround", "Trial time ms");
+            System.out.println(" ---------------------------------------------------------------------------------------------------------");
+
+            for (int n : ns) {
+                for (int[] counts : sellerCounts) {
+                    Main config = template.copy();
+                    config.N = n;
+                    config.setSellerCounts(counts[0], counts[1], counts[2]);
+
+                    // Trial seeds come from the batch seed, so a whole batch replays from one number
+                    SplittableRandom trialSeeds = new SplittableRandom(template.seed);
+                    List<Callable<double[]>> tasks = new ArrayList<>();
+                    for (int t = 0; t < trials; t++) {
+                        long trialSeed = trialSeeds.nextLong();
+                        tasks.add(() -> runTrial(config, trialSeed));
+                    }
+                    double[][] results = new double[trials][];
+                    int t = 0;
+                    for (Future<double[]> result : pool.invokeAll(tasks)) {
+                        try {
+                            results[t++] = result.get();
+                        } catch (InterruptedException | ExecutionException e) {
+                            throw new IOException("Trial failed", e);
+                        }
+                    }
+
+                    double[] mean = new double[metricNames.length];
+                    double[] ci = new double[metricNames.length];
+                    aggregate(results, mean, ci);
+
+                    System.out.printf("| %5d | %-11s | %7.2f +- %-4.2f | %7.2f +- %-4.2f | %7.2f +- %-4.2f | %7.2f +- %-4.2f | %7.2f +- %-4.2f |%n",
+                            n, counts[0] + ":" + counts[1] + ":" + counts[2], mean[3], ci[3], mean[4], ci[4], mean[5], ci[5],
+                            mean[6], ci[6], mean[7], ci[7]);
+                    csv.append(n).append(',').append(counts[0]).append(',').append(counts[1]).append(',').append(counts[2])
+                            .append(',').append(trials);
+                    for (int m = 0; m < metricNames.length; m++) {
+                        csv.append(',').append(String.format("%.4f", mean[m])).append(',').append(String.format("%.4f", ci[m]));
+                    }
+                    csv.append('\n');
+                }
+            }
+            System.out.println(" ---------------------------------------------------------------------------------------------------------");
+
+            if (csvFile != null) {
+                try (Writer out = new FileWriter(csvFile)) {
+                    out.write(csv.toString());
+                }
+                System.out.println("CSV written to " + csvFile);
+            } else {
+                System.out.println();
+                System.out.print(csv);
+            }
+        }
+
+        // One trial: seats sold per tier and in total, customers turned away, mean response time of
+        // the customers served, mean turnaround time of the customers seated, and the trial's run time
+        static double[] runTrial(Main config, long seed) throws IOException {
+            Main sim = config.copy();
+            sim.seed = seed;
+            long start = System.nanoTime();
+            sim.runQuiet();
+            long elapsed = System.nanoTime() - start;
+
+            double[] result = new double[metricNames.length];
+            long arrived = 0, served = 0, sold = 0, stolen = 0, responseSum = 0, turnaroundSum = 0;
+            for (int tier = 0; tier < 3; tier++) {
+                TierMetrics m = sim.tierMetrics[tier];
+                result[tier] = m.sold.sum();
+                arrived += m.arrived.sum();
+                served += m.served.sum();
+                sold += m.sold.sum();
+                stolen += m.stolen.sum();
+                responseSum += m.responseSum.sum();
+                turnaroundSum += m.turnaroundSum.sum();
+            }
+            result[3] = sold;
+            result[4] = arrived - sold;
+            result[5] = served == 0 ? 0 : responseSum / (double) served;
+            result[6] = sold == 0 ? 0 : turnaroundSum / (double) sold;
+            result[7] = elapsed / 1e6;
+            result[8] = stolen;
+            return result;
+        }
+
+        // Mean and half-width of the 95% confidence interval of every column
+        static void aggregate(double[][] results, double[] mean, double[] ci) {
+            int k = results.length;
+            for (int m = 0; m < mean.length; m++) {
+                double sum = 0;
+                for (double[] result : results) {
+                    sum += result[m];
+                }
+                mean[m] = sum / k;
+                double variance = 0;
+                for (double[] result : results) {
+                    variance += (result[m] - mean[m]) * (result[m] - mean[m]);
+                }
+                variance = k > 1 ? variance / (k - 1) : 0;
+                ci[m] = 1.96 * Math.sqrt(variance / k);
+            }
+        }
+    }
+
+    // Fresh metrics, seat chart and venue for a run
+    void resetSimulation() {
+        totalSellers = highSellerCount + mediumSellerCount + lowSellerCount;
+        sellerStreams = new SplittableRandom(seed);
+        simulationTime = 0;
+        tierMetrics = new TierMetrics[] {
+                new TierMetrics('H', highSellerCount),
+                new TierMetrics('M', mediumSellerCount),
+                new TierMetrics('L', lowSellerCount)};
+
+        seatChart = new SeatChart(concertRows, concertCols);
+        venue = new Venue(concertRows, concertCols, concertSections);
+        if (partyMax > 1) {
+            venue.indexRuns();
+        }
+        holds = holdMinutes > 0 ? new HoldWheel(concertRows * concertCols) : null;
+    }
+
+    // Benchmark Structure
+    // A harness for the simulator's hot paths laid out like JMH's report, run with --bench or
+    // --bench=<name filter>. It is not JMH: everything runs in this one JVM, without forks or
+    // blackholes. Every benchmark runs warmup iterations, then measured ones. An iteration repeats
+    // an untimed setup and a timed run until about a second of runs has passed, so a single
+    // short run can't make the score. Scores are average time per operation with a 99.9% error
+    // margin, and the gc.alloc.rate columns come from the per-thread allocation counters of the JVM.
+    static class Benchmarks {
+        static final int warmupIterations = 3;
+        static final int measuredIterations = 5;
+        static final long iterationNanos = 1_000_000_000L;  // Timed runs per iteration
+        static final long iterationWallNanos = 3 * iterationNanos;  // Cut short when setups are slow
+        static volatile long sink;  // Consumes results so the JIT can't drop the work
+
+        // One invocation: untimed setup, then the timed run which returns the operations it did
+        interface Workload {
+            void setup();
+
+            int run();
+        }
+
+        // Run the benchmarks on simulations configured like the template
+        static void runAll(Main template, String filter) throws IOException {
+            System.out.printf("# Not JMH: single JVM, no forks, %d warmup and %d measured iterations of %d s of timed runs%n",
+                    warmupIterations, measuredIterations, iterationNanos / 1_000_000_000L);
+            System.out.printf("%-44s %5s %3s %14s %12s  %-6s %12s %18s %20s%n", "Benchmark", "Mode", "Cnt", "Score", "Error",
+                    "Units", "Ops/iter", "gc.alloc.rate", "gc.alloc.rate.norm");
+
+            for (char sellerType : new char[] {'H', 'M', 'L'}) {
+                for (int fill : new int[] {0, 50, 90, 99}) {
+                    bench(filter, "findAvailableSeat:" + sellerType + ":fill=" + fill + "%", seatSearch(sellerType, fill));
+                }
+            }
+            for (char sellerType : new char[] {'H', 'M', 'L'}) {
+                for (int fill : new int[] {0, 50, 90}) {
+                    bench(filter, "findAdjacentSeats:" + sellerType + ":k=4:fill=" + fill + "%", groupSearch(sellerType, 4, fill));
+                }
+            }
+            for (char sellerType : new char[] {'H', 'M', 'L'}) {
+                bench(filter, "completeSale:" + sellerType, sale(template, sellerType));
+            }
+            for (int n : new int[] {10000, 100000, 1000000}) {
+                bench(filter, "arrivalStream:" + template.arrivals + ":N=" + n, arrivalStream(template, n));
+            }
+            for (int records : new int[] {100000, 1000000, 4000000}) {
+                bench(filter, "seatLog:append:records=" + records, seatLogAppend(records));
+            }
+            for (int records : new int[] {100000, 1000000, 4000000}) {
+                bench(filter, "seatLog:recover:records=" + records, seatLogRecover(template, records));
+            }
+            for (int sellerTotal : new int[] {10, 100, 1000}) {
+                bench(filter, "tickLoop:" + template.runtime + ":sellers=" + sellerTotal, tickLoop(template, sellerTotal));
+            }
+        }
+
+        // Claim seats of one tier in a 100k-seat venue that is already filled to the given level
+        static Workload seatSearch(char sellerType, int fillPercent) {
+            return new Workload() {
+                Venue bench;
+
+                public void setup() {
+                    bench = new Venue(1000, 100, 10);
+                    fill(bench, fillPercent);
+                }
+
+                public int run() {
+                    int ops = 0;
+                    long sum = 0;
+                    for (; ops < 1000; ops++) {
+                        sum += bench.claim(sellerType);
+                    }
+                    sink = sum;
+                    return ops;
+                }
+            };
+        }
+
+        // Blocks of k adjacent seats from a venue with the given share of its seats taken at random,
+        // so the free seats are broken into runs of every length
+        static Workload groupSearch(char sellerType, int k, int fillPercent) {
+            return new Workload() {
+                Venue bench;
+
+                public void setup() {
+                    bench = new Venue(1000, 100, 10);
+                    bench.indexRuns();
+                    SplittableRandom random = new SplittableRandom(fillPercent);
+                    for (int i = 0; i < bench.rows * bench.cols; i++) {
+                        if (random.nextInt(100) < fillPercent) {
+                            bench.take(i);
+                        }
+                    }
+                }
+
+                public int run() {
+                    int ops = 0;
+                    long sum = 0;
+                    for (; ops < 1000; ops++) {
+                        sum += bench.claimGroup(sellerType, k);
+                    }
+                    sink = sum;
+                    return ops;
+                }
+            };
+        }
+
+        // Fill a venue to the given level, spreading the taken seats over all three tier orders
+        static void fill(Venue bench, int fillPercent) {
+            int seats = bench.rows * bench.cols * fillPercent / 100;
+            char[] types = {'H', 'M', 'L'};
+            for (int i = 0; i < seats; i++) {
+                bench.claim(types[i % 3]);
+            }
+        }
+
+        // The whole sale step: claim, seat labels, metrics and the event record
+        static Workload sale(Main template, char sellerType) {
+            return new Workload() {
+                CustomerStore customers;
+                Main sim;
+
+                public void setup() {
+                    sim = template.copy();
+                    sim.concertRows = 1000;
+                    sim.concertCols = 100;
+                    sim.resetSimulation();
+                    try {
+                        sim.eventLog = new EventLog("off", null);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    customers = sim.newCustomerStore(1);
+                    for (int i = 0; i < 1000; i++) {
+                        customers.add(i + 1, 0);
+                    }
+                }
+
+                public int run() {
+                    for (int cust = 0; cust < 1000; cust++) {
+                        sim.completeSale(1, sellerType, 1, customers, cust, null);
+                    }
+                    return 1000;
+                }
+            };
+        }
+
+        // Draw and hand out all of one seller's arrivals, in order
+        static Workload arrivalStream(Main template, int n) {
+            return new Workload() {
+                public void setup() {
+                }
+
+                public int run() {
+                    ArrivalStream arrivals = new ArrivalStream(n, template.simulationDuration,
+                            template.arrivals.equals("poisson"), new SplittableRandom(n));
+                    CustomerStore customers = template.newCustomerStore(1);
+                    long sum = 0;
+                    while (arrivals.nextArrivalTime() != -1) {
+                        int cust = arrivals.next(customers);
+                        sum += customers.get(CustomerStore.ARRIVAL, cust);
+                        customers.free(cust);
+                    }
+                    sink = sum;
+                    return 1;
+                }
+            };
+        }
+
+        // Append records to a fresh pre-allocated log while its committer forces them behind
+        static Workload seatLogAppend(int records) {
+            return new Workload() {
+                SeatLog log;
+                File file;
+
+                public void setup() {
+                    try {
+                        if (log != null) {
+                            log.close();
+                            file.delete();
+                        }
+                        file = File.createTempFile("seats", ".wal");
+                        file.delete();
+                        file.deleteOnExit();
+                        log = new SeatLog(file.getPath(), records / 1000, 1000, records);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                public int run() {
+                    for (int i = 0; i < records; i++) {
+                        log.append(i, i % 60, 'L', 1 + i % 6, 1 + i % 6, i, 0);
+                    }
+                    return records;
+                }
+            };
+        }
+
+        // Reopen a full log and rebuild a venue of one seat per record from it
+        static Workload seatLogRecover(Main template, int records) {
+            return new Workload() {
+                File file;
+                Main sim;
+
+                public void setup() {
+                    try {
+                        if (file == null) {
+                            file = File.createTempFile("seats", ".wal");
+                            file.delete();
+                            file.deleteOnExit();
+                            SeatLog log = new SeatLog(file.getPath(), records / 1000, 1000, records);
+                            for (int i = 0; i < records; i++) {
+                                log.append(i, i % 60, "HML".charAt(i % 3), 1, 1, i, i % 7);
+                            }
+                            log.close();
+                        }
+                        sim = template.copy();
+                        sim.concertRows = records / 1000;
+                        sim.concertCols = 1000;
+                        sim.resetSimulation();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                public int run() {
+                    try {
+                        sim.walFile = file.getPath();
+                        sim.seatLog = new SeatLog(sim.walFile, sim.concertRows, sim.concertCols, records);
+                        PrintStream out = System.out;
+                        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                        try {
+                            sim.recoverSales();
+                        } finally {
+                            System.setOut(out);
+                        }
+                        sim.seatLog.close();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return records;
+                }
+            };
+        }
+
+        // One full hour on the threads engine with H:M:L sellers split 1:3:6
+        static Workload tickLoop(Main template, int sellerTotal) {
+            return new Workload() {
+                Main sim;
+
+                public void setup() {
+                    sim = template.copy();
+                    sim.engine = "threads";
+                    sim.concertRows = 10;
+                    sim.concertCols = 10;
+                    int high = Math.max(1, sellerTotal / 10);
+                    int medium = sellerTotal * 3 / 10;
+                    sim.setSellerCounts(high, medium, sellerTotal - high - medium);
+                    sim.N = 5;
+                }
+
+                public int run() {
+                    try {
+                        sim.runQuiet();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return 1;
+                }
+            };
+        }
+
+        static void bench(String filter, String name, Workload workload) {
+            if (filter != null && !name.contains(filter)) {
+                return;
+            }
+            double[] scores = new double[measuredIterations];
+            long allocated = 0, ops = 0, nanos = 0;
+            for (int i = 0; i < warmupIterations + measuredIterations; i++) {
+                long iterationOps = 0, elapsed = 0, allocatedDuring = 0;
+                long wallStart = System.nanoTime();
+                while (elapsed < iterationNanos && System.nanoTime() - wallStart < iterationWallNanos) {
+                    workload.setup();
+                    long allocatedBefore = allocatedBytes();
+                    long start = System.nanoTime();
+                    iterationOps += workload.run();
+                    elapsed += System.nanoTime() - start;
+                    allocatedDuring += Math.max(0, allocatedBytes() - allocatedBefore);
+                }
+                if (i >= warmupIterations) {
+                    scores[i - warmupIterations] = elapsed / (double) iterationOps;
+                    allocated += allocatedDuring;
+                    ops += iterationOps;
+                    nanos += elapsed;
+                }
+            }
+
+            double mean = 0;
+            for (double score : scores) {
+                mean += score / measuredIterations;
+            }
+            double variance = 0;
+            for (double score : scores) {
+                variance += (score - mean) * (score - mean) / (measuredIterations - 1);
+            }
+            // t-distribution quantile for 99.9% and 4 degrees of freedom, as JMH reports
+            double error = 8.610 * Math.sqrt(variance / measuredIterations);
+            System.out.printf("%-44s %5s %3d %14.1f %12s  %-6s %12d %12.1f MB/sec %14.1f B/op%n", name, "avgt", measuredIterations,
+                    mean, String.format("+- %.1f", error), "ns/op", ops / measuredIterations, allocated / 1048576.0 / (nanos / 1e9),
+                    allocated / (double) ops);
+        }
+
+        // Bytes allocated so far by all live threads. Seller threads that exit during an iteration take
+        // their counts with them, so the fork/join runtime gives the most complete tick loop numbers.
+        static long allocatedBytes() {
+            java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+            if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+                return 0;
+            }
+            long total = 0;
+            for (long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+                total += Math.max(0, bytes);
+            }
+            return total;
+        }
+    }
+
+    // Run the simulation with all sellers stepping in lockstep on the tick clock
+    public void runThreadEngine() {
+        clock = new TickClock(simulationDuration);
+        sellerThreads = new Thread[totalSellers];
+        sellers = new Seller[totalSellers];
+        sellerCount = 0;
+
+        ThreadFactory threadFactory = sellerThreadFactory();
+        if (threadFactory == null) {
+            runForkJoinSellers();
+            return;
+        }
+
+        // Create seller threads for high, medium, and low sellers
+        createSellerThreads('H', highSellerCount, threadFactory);
+        createSellerThreads('M', mediumSellerCount, threadFactory);
+        createSellerThreads('L', lowSellerCount, threadFactory);
+
+        // Start the sellers only once all of them are registered: a leaf phaser whose parties
+        // have all arrived blocks further registration until the clock advances
+        for (Thread sellerThread : sellerThreads) {
+            sellerThread.start();
+        }
+
+        // Simulate the time slices
+        do {
+            // Release all sellers into one time slice and wait until they served it
+            clock.tick();
+            minuteServed(simulationTime);
+            simulationTime = simulationTime + 1;
+        } while (simulationTime < simulationDuration);
+
+        // Release the sellers to close their windows and wait for all of them
+        clock.close();
+    }
+
+    // Thread factory for the seller runtime, null when sellers run as fork/join tasks instead.
+    // Virtual threads need Java 21; on older runtimes they fall back to fork/join tasks.
+    ThreadFactory sellerThreadFactory() {
+        if (runtime.equals("platform")) {
+            return Thread::new;
+        }
+        if (runtime.equals("virtual")) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available on Java " + System.getProperty("java.version")
+                        + ", running sellers as fork/join tasks");
+            }
+        }
+        return null;
+    }
+
+    // Run every seller as a fork/join task per tick. Each tick is one structured scope: all
+    // sellers' tasks are forked and joined before the clock moves on, so no seller needs a
+    // thread of its own and 10k+ sellers share the pool's workers.
+    public void runForkJoinSellers() {
+        createSellers('H', highSellerCount);
+        createSellers('M', mediumSellerCount);
+        createSellers('L', lowSellerCount);
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        do {
+            long start = System.nanoTime();
+            pool.invoke(new SellerTickTask(0, sellerCount, simulationTime, false));
+            clock.recordTick(start);
+            minuteServed(simulationTime);
+            simulationTime = simulationTime + 1;
+        } while (simulationTime < simulationDuration);
+
+        pool.invoke(new SellerTickTask(0, sellerCount, simulationTime, true));
+    }
+
+    // Serve one tick (or close the windows) for a range of sellers, splitting it across the pool
+    class SellerTickTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        static final int sellersPerTask = 64;
+
+        final int from, to, time;
+        final boolean close;
+
+        SellerTickTask(int from, int to, int time, boolean close) {
+            this.from = from;
+            this.to = to;
+            this.time = time;
+            this.close = close;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > sellersPerTask) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SellerTickTask(from, mid, time, close), new SellerTickTask(mid, to, time, close));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                if (close) {
+                    sellers[i].closeWindow(time);
+                } else {
+                    sellers[i].serveTick(time);
+                }
+            }
+            eventLog.flush();
+        }
+    }
+
+    // Display the final concert seat chart and statistics
+    public void printStatistics() {
+        // Display the final concert seat chart and statistics, large venues only get the statistics
+        boolean printChart = concertRows * concertCols <= chartSeatLimit;
+        System.out.println("\n\nFinal Concert Seat Chart");
+        System.out.println("========================\n");
+        if (!printChart) {
+            System.out.println("(" + concertRows + " x " + concertCols + " seats in " + venue.sections.length + " sections, chart omitted)");
+        }
+
+        SeatChart.Snapshot chart = seatChart.snapshot();
+        int highCustomers = 0, mediumCustomers = 0, lowCustomers = 0;
+        for (int r = 0; r < concertRows; r++) {
+            for (int c = 0; c < concertCols; c++) {
+                char sellerType = chart.cells[r][c].charAt(0);
+                if (sellerType == 'H') highCustomers++;
+                if (sellerType == 'M') mediumCustomers++;
+                if (sellerType == 'L') lowCustomers++;
+            }
+            if (printChart)
+                System.out.println(chart.lines[r]);
+        }
+        if (partyMax > 1) {
+            // A party fills several seats, count the customers who got theirs instead
+            highCustomers = (int) tierMetrics[0].sold.sum();
+            mediumCustomers = (int) tierMetrics[1].sold.sum();
+            lowCustomers = (int) tierMetrics[2].sold.sum();
+        }
+
+        System.out.println("\n\n");
+        System.out.println("=============================");
+        System.out.println("Multi-threaded Ticket Sellers");
+        System.out.println("Stat for N = " + N);
+        System.out.println("==============================\n");
+        System.out.println(" =============================================================\n");
+        System.out.println("|   | No of Customers | Got Seat | Returned | Throughput|\n");
+        System.out.println(" =============================================================\n");
+        long highArrived = tierMetrics[0].arrived.sum();
+        long mediumArrived = tierMetrics[1].arrived.sum();
+        long lowArrived = tierMetrics[2].arrived.sum();
+        System.out.printf("| H | %15d | %8d | %8d | %.2f \n", highArrived, highCustomers, highArrived - highCustomers, (highCustomers / (double) simulationDuration));
+        System.out.printf("| M | %15d | %8d | %8d | %.2f \n", mediumArrived, mediumCustomers, mediumArrived - mediumCustomers, (mediumCustomers / (double) simulationDuration));
+        System.out.printf("| L | %15d | %8d | %8d | %.2f \n", lowArrived, lowCustomers, lowArrived - lowCustomers, (lowCustomers / (double) simulationDuration));
+        System.out.println(" =============================================================\n");
+
+        System.out.println(" -----------------------------------------------");
+        System.out.println("|    | Avg response Time | Avg turnaround time| (in simulation time units) ");
+        System.out.println(" ------------------------------------------------");
+        for (TierMetrics m : tierMetrics) {
+            double arrived = Math.max(1, m.arrived.sum());
+            System.out.printf("| %3c  | %.2f          | %.2f \t\t|\n", m.sellerType, m.responseSum.sum() / arrived, m.turnaroundSum.sum() / arrived);
+        }
+        System.out.println(" ------------------------------------------------");
+        if (partyMax > 1) {
+            System.out.println("|    | Parties | Seats | Avg party | No block | (parties of 1 to " + partyMax + ")");
+            for (TierMetrics m : tierMetrics) {
+                long parties = m.sold.sum();
+                System.out.printf("| %c  | %7d | %5d | %9.2f | %8d |%n", m.sellerType, parties, m.seats.sum(),
+                        parties == 0 ? 0.0 : m.seats.sum() / (double) parties, m.noBlock.sum());
+            }
+            System.out.println(" ------------------------------------------------");
+        }
+        if (!admission.equals("off") || queueCap > 0) {
+            System.out.println("|    | Rejected | Redirected | Max queue | (admission " + admission
+                    + (queueCap > 0 ? ", queues capped at " + queueCap : "") + ")");
+            for (TierMetrics m : tierMetrics) {
+                System.out.printf("| %c  | %8d | %10d | %9d |%n", m.sellerType, m.rejected.sum(), m.redirected.sum(), m.maxQueue.get());
+            }
+            System.out.println(" ------------------------------------------------");
+        }
+        if (holds != null) {
+            System.out.println("|    |   Held | Abandoned | Expired | (holds of " + holdMinutes + " min)");
+            for (TierMetrics m : tierMetrics) {
+                System.out.printf("| %c  | %6d | %9d | %7d |%n", m.sellerType, m.held.sum(), m.abandoned.sum(), m.expired.sum());
+            }
+            System.out.println(" ------------------------------------------------");
+        }
+        printLatencyMetrics();
+    }
+
+    // Self Test Structure
+    // Checks of the lock-free and indexed structures against plain references, each printing one
+    // line. The run fails when any check does.
+    static class SelfTest {
+        static int checks = 0, failures = 0;
+
+        // One check: null when it passes, else what went wrong
+        interface Check {
+            String run() throws Exception;
+        }
+
+        static boolean runAll() {
+            check("SeatInventory: concurrent claims and releases sell every seat exactly once", SelfTest::seatInventory);
+            check("StealDeque: owner and thieves take every item exactly once", SelfTest::stealDeque);
+            check("SeatLog: a torn record ends recovery and stale records stay lost", SelfTest::seatLogRecovery);
+            check("FreeRunIndex: runs, rows and blocks agree with a brute-force scan", SelfTest::freeRunIndex);
+            check("HoldWheel: holds of every level expire on their minute, confirmed and lapsed ones never", SelfTest::holdWheel);
+            System.out.printf("Self test %s: %d of %d checks failed%n", failures == 0 ? "passed" : "failed", failures, checks);
+            return failures == 0;
+        }
+
+        static void check(String name, Check check) {
+            long start = System.nanoTime();
+            String problem;
+            try {
+                problem = check.run();
+            } catch (Exception | AssertionError e) {
+                problem = e.toString();
+            }
+            checks++;
+            if (problem != null) {
+                failures++;
+            }
+            System.out.printf("%s %s in %.1f ms%s%n", problem == null ? "PASS" : "FAIL", name, (System.nanoTime() - start) / 1e6,
+                    problem == null ? "" : ": " + problem);
+        }
+
+        // Threads of all three tiers claim seats of a venue, in one section and in several, and give
+        // a third of the time one of their seats back, then the venue is claimed until sold out.
+        // No seat may be held twice and a release must free a held seat; in the end every seat is
+        // held once and the free counts agree with the bits.
+        static String seatInventory() throws InterruptedException {
+            int steps = 20000;
+            for (int sectionCount : new int[] {1, 3}) {
+                Venue venue = new Venue(20, 25, sectionCount);
+                int seats = 20 * 25;
+                AtomicIntegerArray holder = new AtomicIntegerArray(seats);
+                AtomicReferenceArray<String> problem = new AtomicReferenceArray<>(1);
+                Thread[] sellers = new Thread[6];
+                for (int t = 0; t < sellers.length; t++) {
+                    int id = t + 1;
+                    char sellerType = "HML".charAt(t % 3);
+                    sellers[t] = new Thread(() -> {
+                        SplittableRandom random = new SplittableRandom(id);
+                        int[] mine = new int[seats];
+                        int count = 0;
+                        for (int step = 0; step < steps && problem.get(0) == null; step++) {
+                            if (count > 0 && random.nextInt(3) == 0) {
+                                int i = random.nextInt(count);
+                                int seat = mine[i];
+                                mine[i] = mine[--count];
+                                holder.set(seat, 0);
+                                if (!venue.release(seat)) {
+                                    problem.compareAndSet(0, null, "seat " + seat + " was held but could not be released");
+                                }
+                                continue;
+                            }
+                            int seat = venue.claim(sellerType);
+                            if (seat == -1) {
+                                continue;
+                            }
+                            if (!holder.compareAndSet(seat, 0, id)) {
+                                problem.compareAndSet(0, null, "seat " + seat + " was sold twice");
+                            }
+                            mine[count++] = seat;
+                        }
+                    }, "selftest-seller-" + id);
+                    sellers[t].start();
+                }
+                for (Thread seller : sellers) {
+                    seller.join();
+                }
+                if (problem.get(0) != null) {
+                    return sectionCount + " sections: " + problem.get(0);
+                }
+
+                // Seats still free once the sellers stopped
+                for (int seat = venue.claim('M'); seat != -1; seat = venue.claim('M')) {
+                    if (!holder.compareAndSet(seat, 0, -1)) {
+                        return sectionCount + " sections: seat " + seat + " was sold twice";
+                    }
+                }
+                for (int seat = 0; seat < seats; seat++) {
+                    if (holder.get(seat) == 0) {
+                        return sectionCount + " sections: seat " + seat + " is free but the venue is sold out";
+                    }
+                }
+                for (SeatInventory section : venue.sections) {
+                    int taken = 0;
+                    for (int word = 0; word < section.occupied.length(); word++) {
+                        taken += Long.bitCount(section.occupied.get(word));
+                    }
+                    if (taken != section.seats || section.available.get() != 0) {
+                        return sectionCount + " sections: a section of " + section.seats + " seats has " + taken + " bits set and "
+                                + section.available.get() + " available";
+                    }
+                }
+            }
+            return null;
+        }
+
+        // The owner adds in random bursts past the initial capacity and polls between them while
+        // thieves steal from the tail, then drains what is left
+        static String stealDeque() throws InterruptedException {
+            int items = 200_000;
+            StealDeque deque = new StealDeque();
+            AtomicIntegerArray taken = new AtomicIntegerArray(items);
+            AtomicBoolean drained = new AtomicBoolean();
+            Thread[] thieves = new Thread[3];
+            for (int t = 0; t < thieves.length; t++) {
+                thieves[t] = new Thread(() -> {
+                    while (true) {
+                        int item = deque.steal();
+                        if (item != -1) {
+                            taken.incrementAndGet(item);
+                        } else if (drained.get()) {
+                            return;
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }, "selftest-thief-" + t);
+                thieves[t].start();
+            }
+
+            SplittableRandom random = new SplittableRandom(1);
+            int next = 0;
+            while (next < items) {
+                for (int burst = random.nextInt(64); burst > 0 && next < items; burst--) {
+                    deque.add(next++);
+                }
+                for (int polls = random.nextInt(48); polls > 0; polls--) {
+                    int item = deque.poll();
+                    if (item == -1) {
+                        break;
+                    }
+                    taken.incrementAndGet(item);
+                }
+            }
+            for (int item = deque.poll(); item != -1; item = deque.poll()) {
+                taken.incrementAndGet(item);
+            }
+            drained.set(true);
+            for (Thread thief : thieves) {
+                thief.join();
+            }
+
+            for (int item = 0; item < items; item++) {
+                if (taken.get(item) != 1) {
+                    return "item " + item + " was taken " + taken.get(item) + " times";
+                }
+            }
+            return null;
+        }
+
+        // Log 40 sales, tear the 26th, then reopen, log 5 more and reopen again: the first open
+        // keeps 25 records and the second 30, never one written before the tear past it
+        static String seatLogRecovery() throws IOException {
+            File file = File.createTempFile("selftest", ".wal");
+            file.delete();
+            try {
+                SeatLog log = new SeatLog(file.getPath(), 8, 8, 64);
+                for (int i = 0; i < 40; i++) {
+                    log.append(i, i, 'M', 1, 1, i, 0);
+                }
+                log.close();
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.allocate(4), SeatLog.offset(25) + 28);
+                }
+
+                log = new SeatLog(file.getPath(), 8, 8, 64);
+                if (log.recovered != 25 || log.damaged != 15) {
+                    return "reopened with " + log.recovered + " records and " + log.damaged + " torn, not 25 and 15";
+                }
+                for (int i = 0; i < 5; i++) {
+                    log.append(63 - i, 50, 'L', 2, 2, 100 + i, 0);
+                }
+                log.close();
+
+                log = new SeatLog(file.getPath(), 8, 8, 64);
+                try {
+                    if (log.recovered != 30) {
+                        return "reopened again with " + log.recovered + " records, not 30";
+                    }
+                    for (int record = 0; record < 30; record++) {
+                        int seat = record < 25 ? record : 63 - (record - 25);
+                        if (log.seat(record) != seat) {
+                            return "record " + record + " is of seat " + log.seat(record) + ", not " + seat;
+                        }
+                    }
+                    for (int i = 0; i < 36; i++) {
+                        log.append(i, 60, 'H', 0, 3, i, 0);
+                    }
+                    if (log.dropped.get() != 2) {
+                        return log.dropped.get() + " appends dropped past a full log, not 2";
+                    }
+                } finally {
+                    log.close();
+                }
+                return null;
+            } finally {
+                file.delete();
+            }
+        }
+
+        // Random sections, padded and exact powers of two, with random seats taken and freed; after
+        // every change each query is compared with a scan of a plain array of the seats
+        static String freeRunIndex() {
+            SplittableRandom random = new SplittableRandom(7);
+            for (int trial = 0; trial < 60; trial++) {
+                int rows = 1 + random.nextInt(12), cols = 1 + random.nextInt(40);
+                FreeRunIndex index = new FreeRunIndex(rows, cols);
+                boolean[][] free = new boolean[rows][cols];
+                for (boolean[] row : free) {
+                    Arrays.fill(row, true);
+                }
+                for (int change = 0; change < 400; change++) {
+                    int row = random.nextInt(rows), col = random.nextInt(cols);
+                    free[row][col] = random.nextBoolean();
+                    index.set(row, col, free[row][col]);
+
+                    int longest = 0;
+                    for (int r = 0; r < rows; r++) {
+                        longest = Math.max(longest, longestRun(free[r]));
+                    }
+                    if (index.longest() != longest) {
+                        return rows + " x " + cols + ": longest run " + index.longest() + ", not " + longest;
+                    }
+                    int k = 1 + random.nextInt(1 + random.nextInt(cols));
+                    int from = random.nextInt(rows), to = from + 1 + random.nextInt(rows - from);
+                    boolean last = random.nextBoolean();
+                    int expected = -1;
+                    for (int r = from; r < to; r++) {
+                        if (longestRun(free[r]) >= k && (expected == -1 || last)) {
+                            expected = r;
+                        }
+                    }
+                    if (index.findRow(from, to, k, last) != expected) {
+                        return rows + " x " + cols + ": row with " + k + " free in [" + from + ", " + to + ") last " + last + " is "
+                                + index.findRow(from, to, k, last) + ", not " + expected;
+                    }
+                    for (boolean fromRight : new boolean[] {false, true}) {
+                        expected = -1;
+                        for (int c = 0, run = 0; c < cols; c++) {
+                            run = free[row][c] ? run + 1 : 0;
+                            if (run >= k && (expected == -1 || fromRight)) {
+                                expected = c - k + 1;
+                            }
+                        }
+                        if (index.findBlock(row, k, fromRight) != expected) {
+                            return rows + " x " + cols + ": block of " + k + " in row " + row + " from the " + (fromRight ? "right" : "left")
+                                    + " is at " + index.findBlock(row, k, fromRight) + ", not " + expected;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        // Holds from one minute to past the top level are taken, confirmed and let lapse at random
+        // while the wheel advances a minute at a time; the seats each minute expires must be the
+        // standing holds a scan of every seat finds due then, and the end of the sale must expire
+        // all the rest. A seat is held again only once its old bucket is behind the wheel.
+        static String holdWheel() {
+            int seats = 4000, minutes = 12000;
+            HoldWheel wheel = new HoldWheel(seats);
+            SplittableRandom random = new SplittableRandom(3);
+            int[] state = new int[seats];  // What the wheel should have, FREE, HELD or SOLD
+            int[] due = new int[seats];
+            int[] lengths = {64, 4096, 20000, 300000};
+            int[] expiredNow = new int[1];
+            String[] problem = new String[1];
+
+            for (int time = 1; time <= minutes && problem[0] == null; time++) {
+                for (int change = 0; change < 3; change++) {
+                    int seat = random.nextInt(seats);
+                    if (state[seat] == HoldWheel.FREE && due[seat] <= wheel.now) {
+                        int until = wheel.now + random.nextInt(lengths[random.nextInt(lengths.length)]);
+                        wheel.hold(seat, until, 0, 1, 1, seat);
+                        state[seat] = HoldWheel.HELD;
+                        due[seat] = Math.max(until, wheel.now + 1);
+                    } else if (state[seat] == HoldWheel.HELD && random.nextInt(4) == 0) {
+                        boolean confirm = random.nextBoolean();
+                        if (!(confirm ? wheel.confirm(seat) : wheel.lapse(seat))) {
+                            return "a standing hold of seat " + seat + " could not be " + (confirm ? "confirmed" : "let lapse");
+                        }
+                        state[seat] = confirm ? HoldWheel.SOLD : HoldWheel.FREE;
+                    }
+                }
+
+                int minute = time;
+                int dueNow = 0;
+                for (int seat = 0; seat < seats; seat++) {
+                    if (state[seat] == HoldWheel.HELD && due[seat] == minute) {
+                        dueNow++;
+                    }
+                }
+                expiredNow[0] = 0;
+                wheel.advance(minute, seat -> {
+                    if (state[seat] != HoldWheel.HELD || due[seat] != minute) {
+                        problem[0] = "seat " + seat + " due at " + due[seat] + " in state " + state[seat] + " expired at " + minute;
+                    }
+                    state[seat] = HoldWheel.FREE;
+                    expiredNow[0]++;
+                });
+                if (problem[0] == null && expiredNow[0] != dueNow) {
+                    problem[0] = expiredNow[0] + " holds expired at " + minute + ", not " + dueNow;
+                }
+            }
+            if (problem[0] != null) {
+                return problem[0];
+            }
+
+            int standing = 0;
+            for (int seat = 0; seat < seats; seat++) {
+                if (state[seat] == HoldWheel.HELD) {
+                    standing++;
+                }
+            }
+            int expired = wheel.expireAll(seat -> {
+                if (state[seat] != HoldWheel.HELD) {
+                    problem[0] = "seat " + seat + " in state " + state[seat] + " expired at the end";
+                }
+                state[seat] = HoldWheel.FREE;
+            });
+            if (problem[0] == null && (expired != standing || standing == 0)) {
+                problem[0] = expired + " holds expired at the end, not " + standing;
+            }
+            return problem[0];
+        }
+
+        static int longestRun(boolean[] seats) {
+            int longest = 0;
+            for (int c = 0, run = 0; c < seats.length; c++) {
+                run = seats[c] ? run + 1 : 0;
+                longest = Math.max(longest, run);
+            }
+            return longest;
+        }
+    }
+
+    // Tier Metrics Structure
+    // Sellers of a tier record into LongAdders and striped histograms, so recording never makes
+    // them contend on one counter, and a reader can take a snapshot at any time during the run.
+    static class TierMetrics {
+        final char sellerType;
+        final int sellers;  // Sellers of this tier, for the throughput per seller
+        final LongAdder arrived = new LongAdder();  // Customers who joined a seller's queue
+        final LongAdder served = new LongAdder();  // Customers who reached the window
+        final LongAdder sold = new LongAdder();  // Customers who got a seat
+        final LongAdder seats = new LongAdder();  // Seats sold, more than one per party
+        final LongAdder noBlock = new LongAdder();  // Parties that found no row with room for them all
+        final LongAdder rejected = new LongAdder();  // Customers admission control turned away on arrival
+        final LongAdder redirected = new LongAdder();  // Customers admission control sent on to a peer
+        final LongAccumulator maxQueue = new LongAccumulator(Math::max, 0);  // Most customers a seller had waiting or in service
+        final LongAdder stolen = new LongAdder();  // Customers served by a peer of the seller they queued at
+        final LongAdder held = new LongAdder();  // Seats held at the start of service
+        final LongAdder abandoned = new LongAdder();  // Held customers who walked away
+        final LongAdder expired = new LongAdder();  // Holds that ran out and gave their seat back
+        final LongAdder responseSum = new LongAdder();
+        final LongAdder turnaroundSum = new LongAdder();
+        final Histogram response = new Histogram();
+        final Histogram turnaround = new Histogram();
+
+        TierMetrics(char sellerType, int sellers) {
+            this.sellerType = sellerType;
+            this.sellers = sellers;
+        }
+
+        void recordResponse(int responseTime) {
+            served.increment();
+            responseSum.add(responseTime);
+            response.record(responseTime);
+        }
+
+        void recordSale(int turnaroundTime) {
+            sold.increment();
+            turnaroundSum.add(turnaroundTime);
+            turnaround.record(turnaroundTime);
+        }
+
+        // Seats sold per seller per minute over the given number of minutes
+        double throughputPerSeller(int minutes) {
+            return sellers == 0 || minutes == 0 ? 0.0 : sold.sum() / (double) sellers / minutes;
+        }
+    }
+
+    // Histogram Structure
+    // Log-linear buckets: exact below 64, then 16 buckets per power of two (at most 6% wide).
+    // Each bucket is a LongAdder, so concurrent sellers don't share a counter cell.
+    static class Histogram {
+        static final int linearBuckets = 64;
+        static final int subBuckets = 16;
+        static final int bucketCount = linearBuckets + (31 - 6) * subBuckets;
+
+        final LongAdder[] buckets = new LongAdder[bucketCount];
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < bucketCount; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(int value) {
+            value = Math.max(value, 0);
+            buckets[bucketOf(value)].increment();
+            max.accumulate(value);
+        }
+
+        static int bucketOf(int value) {
+            if (value < linearBuckets) {
+                return value;
+            }
+            int exponent = 31 - Integer.numberOfLeadingZeros(value);
+            int sub = (value >>> (exponent - 4)) & (subBuckets - 1);
+            return linearBuckets + (exponent - 6) * subBuckets + sub;
+        }
+
+        // Largest value that falls in the bucket
+        static long upperBound(int bucket) {
+            if (bucket < linearBuckets) {
+                return bucket;
+            }
+            int exponent = (bucket - linearBuckets) / subBuckets + 6;
+            int sub = (bucket - linearBuckets) % subBuckets;
+            return ((long) (subBuckets + sub + 1) << (exponent - 4)) - 1;
+        }
+
+        // Value at the given percentile (0-100), 0 when nothing was recorded
+        long percentile(double p) {
+            long[] counts = new long[bucketCount];
+            long total = 0;
+            for (int i = 0; i < bucketCount; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < bucketCount; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
         }
     }
 
-    // Customer Structure
-    static class Customer {
-        char custNo;  // Identifier for the customer
-        int arrivalTime;  // Time when the customer arrives
-        int responseTime;  // Time it takes for the customer to be served
-        int turnaroundTime;  // Total time the customer spends, including wait and service time
+    TierMetrics metricsFor(char sellerType) {
+        return tierMetrics[SeatInventory.tierIndex(sellerType)];
+    }
 
-        Customer(char custNo, int arrivalTime) {
-            this.custNo = custNo;
-            this.arrivalTime = arrivalTime;
+    // Print the latency percentiles and throughput of every tier
+    public void printLatencyMetrics() {
+        System.out.println(" ---------------------------------------------------------------------------------------");
+        System.out.println("|    |   Response p50/p90/p99/max   |  Turnaround p50/p90/p99/max  | Throughput per seller|");
+        System.out.println(" ---------------------------------------------------------------------------------------");
+        for (TierMetrics m : tierMetrics) {
+            System.out.printf("| %c  | %5d %5d %5d %5d      | %5d %5d %5d %5d       | %.3f \n", m.sellerType,
+                    m.response.percentile(50), m.response.percentile(90), m.response.percentile(99), m.response.max.get(),
+                    m.turnaround.percentile(50), m.turnaround.percentile(90), m.turnaround.percentile(99), m.turnaround.max.get(),
+                    m.throughputPerSeller(simulationDuration));
         }
+        System.out.println(" ---------------------------------------------------------------------------------------");
     }
 
-    // Global simulation variables
-    static int simulationTime;  // Current time in the simulation
-    static int N = 15;  // Default number of customers per seller
+    // The clock finished the given minute, print a metrics snapshot every --metrics-every minutes
+    void minuteServed(int time) {
+        if (holds != null && holds.advance(time + 1, seat -> holdExpired(time + 1, seat)) > 0) {
+            eventLog.flush();
+        }
+        if (chartMode.equals("diff")) {
+            printChartDiff(time);
+        }
+        if (metricsEvery <= 0 || (time + 1) % metricsEvery != 0) {
+            return;
+        }
+        StringBuilder line = new StringBuilder("[metrics " + (time + 1) + " min]");
+        for (TierMetrics m : tierMetrics) {
+            line.append(String.format(" %c served %d sold %d resp p50/p99 %d/%d turnaround p50/p99 %d/%d |", m.sellerType,
+                    m.served.sum(), m.sold.sum(), m.response.percentile(50), m.response.percentile(99),
+                    m.turnaround.percentile(50), m.turnaround.percentile(99)));
+        }
+        System.err.println(line);
+    }
 
-    // Variables to track response and turnaround times for each seller type
-    static int responseTimeForHigh = 0;
-    static int responseTimeForMedium = 0;
-    static int responseTimeForLow = 0;
-    static int turnaroundTimeForHigh = 0;
-    static int turnaroundTimeForMedium = 0;
-    static int turnaroundTimeForLow = 0;
+    // A hold ran out: its seat goes back to every tier's search order
+    void holdExpired(int time, int seat) {
+        char sellerType = "HML".charAt(holds.holderTier[seat]);
+        if (inventory != null) {
+            inventory.release(concertId, seat).join();
+        } else {
+            venue.release(seat);
+        }
+        metricsFor(sellerType).expired.increment();
+        eventLog.record(EventLog.EXPIRED, time, sellerType, holds.holderSeller[seat], holds.holderQueuedAt[seat],
+                holds.holderCust[seat], seat / concertCols, seat % concertCols, 0);
+    }
 
-    // 3D array to represent the concert seat matrix
-    static String[][][] seatMatrix = new String[concertRows][concertCols][3];
+    // Print the seats sold since the previous snapshot, for venues too large to reprint each minute
+    void printChartDiff(int time) {
+        SeatChart.Snapshot before = seatChart.latest;
+        SeatChart.Snapshot after = seatChart.snapshot();
+        if (after == before) {
+            return;
+        }
+        StringBuilder line = new StringBuilder("[chart " + (time + 1) + " min, snapshot " + after.version + "]");
+        after.diff(before, line);
+        System.err.println(line);
+    }
 
-    // Thread-related variables
-    static Thread[] sellerThreads = new Thread[totalSellers];
-    static Lock threadCountLock = new ReentrantLock();
-    static Lock threadWaitingLock = new ReentrantLock();
-    static Lock reservationLock = new ReentrantLock();
-    static Lock conditionLock = new ReentrantLock();
-    static Condition condition = conditionLock.newCondition();
+    // Create seller threads for a given seller type and count
+    public void createSellerThreads(char sellerType, int numberOfSellers, ThreadFactory threadFactory) {
+        int first = sellerCount;
+        createSellers(sellerType, numberOfSellers);
 
-    static int threadCount = 0;
-    static int threadsWaitingForClockTick = 0;
-    static int activeThread = 0;
+        // Create all threads
+        for (int i = first; i < sellerCount; i++) {
+            Seller sellerArg = sellers[i];
+            Phaser clockPhaser = clock.register();
 
-    public static void main(String[] args) {
-        // Parse command line argument (if provided) to set the number of customers per seller
-        if (args.length == 1) {
-            N = Integer.parseInt(args[0]);
+            sellerThreads[i] = threadFactory.newThread(() -> sell(sellerArg, clockPhaser));
         }
+    }
 
-        // Initialize the concert seat matrix
-        for (int r = 0; r < concertRows; r++) {
-            for (int c = 0; c < concertCols; c++) {
-                seatMatrix[r][c][0] = "-";
+    // Create the sellers of one type with their customer queues
+    public void createSellers(char sellerType, int numberOfSellers) {
+        int first = sellerCount;
+        for (int tNo = 0; tNo < numberOfSellers; tNo++) {
+            SplittableRandom random = sellerStreams.split();
+            CustomerStore customers = newCustomerStore(sellerNumber(sellerType, tNo));
+            sellers[sellerCount] = new Seller(tNo, sellerType, newArrivalStream(random), customers, random);
+            sellers[sellerCount++].decisions = newDecisionStream(random);
+        }
+        if (steal || admission.equals("redirect")) {
+            Seller[] peers = Arrays.copyOfRange(sellers, first, sellerCount);
+            for (int i = 0; i < peers.length; i++) {
+                peers[i].peers = peers;
+                peers[i].peerIndex = i;
+                if (steal) {
+                    peers[i].customers.returned = new SlotRing(returnedSlots, 1);
+                }
+                if (admission.equals("redirect")) {
+                    // Admission keeps fewer customers ahead than there are minutes in the sale
+                    peers[i].inbox = new SlotRing(simulationDuration + 1, 2);
+                }
             }
         }
+    }
 
-        // Create seller threads for high, medium, and low sellers
-        createSellerThreads('H', highSellerCount);
-        createSellerThreads('M', mediumSellerCount);
-        createSellerThreads('L', lowSellerCount);
-
-        // Wait for threads to finish initialization and synchronize with the clock tick
+    // Logic to simulate the behavior of a seller
+    public void sell(Seller args, Phaser clockPhaser) {
+        int no = sellerNumber(args.sellerType, args.sellerNo);
         while (true) {
-            threadCountLock.lock();
-            if (threadCount == 0) {
-                threadCountLock.unlock();
-                break;
-            }
-            threadCountLock.unlock();
-        }
+            // Waiting for clock tick
+            Flight.TickWait wait = new Flight.TickWait();
+            wait.begin();
+            TickClock.awaitTick(clockPhaser);
+            tickWaited(wait, args.sellerType, no, simulationTime, false);
 
-        // Simulate the time slices
-        System.out.println("Starting Simulation");
+            // Sell
+            if (simulationTime == simulationDuration)
+                break;
 
-        threadsWaitingForClockTick = 0;
-        wakeupAllSellerThreads(); // For the first clock tick
+            args.serveTick(simulationTime);
+            eventLog.flush();
 
-        do {
-            // Wake up all threads, simulate one time slice, and wait for thread completion
-            waitForThreadToServeCurrentTimeSlice();
-            simulationTime = simulationTime + 1;
-            wakeupAllSellerThreads();
-        } while (simulationTime < simulationDuration);
+            wait = new Flight.TickWait();
+            wait.begin();
+            TickClock.tickServed(clockPhaser);
+            tickWaited(wait, args.sellerType, no, simulationTime, true);
+        }
 
-        // Wake up all threads to prevent further waiting for clock ticks
-        wakeupAllSellerThreads();
+        args.closeWindow(simulationTime);
+        eventLog.flush();
 
-        while (activeThread > 0) ;
+        TickClock.leave(clockPhaser);
+    }
 
-        // Display the final concert seat chart and statistics
-        System.out.println("\n\nFinal Concert Seat Chart");
-        System.out.println("========================\n");
+    void tickWaited(Flight.TickWait wait, char sellerType, int sellerNo, int time, boolean served) {
+        if (wait.shouldCommit()) {
+            wait.tier = sellerType;
+            wait.sellerNo = sellerNo;
+            wait.minute = time;
+            wait.served = served;
+            wait.commit();
+        }
+    }
 
-        int highCustomers = 0, mediumCustomers = 0, lowCustomers = 0;
-        for (int r = 0; r < concertRows; r++) {
-            for (int c = 0; c < concertCols; c++) {
-                if (c != 0)
-                    System.out.print("\t");
+    // Report how many customers wait at a seller, when the flight recorder asks for it
+    static void queueDepth(int time, char sellerType, int sellerNo, int depth) {
+        Flight.QueueDepth event = new Flight.QueueDepth();
+        if (event.shouldCommit()) {
+            event.tier = sellerType;
+            event.sellerNo = sellerNo;
+            event.minute = time;
+            event.depth = depth;
+            event.commit();
+        }
+    }
 
-                String seatInfo = seatMatrix[r][c][0];
+    // Seller number as printed: a lone H seller is H0, the M and L sellers, and the H sellers when
+    // there are several, are numbered from 1 so that every seller's customers get ids of their own
+    int sellerNumber(char sellerType, int tNo) {
+        return sellerType == 'H' && highSellerCount == 1 ? 0 : tNo + 1;
+    }
 
-                if (seatMatrix[r][c][1] != null) {
-                    seatInfo += seatMatrix[r][c][1];
-                }
+    // A customer arrives at the tail of a seller's queue
+    void customerArrived(int time, char sellerType, int sellerNo, CustomerStore customers, int cust) {
+        metricsFor(sellerType).arrived.increment();
+        eventLog.record(EventLog.ARRIVED, time, sellerType, sellerNo, customers.get(CustomerStore.SELLER, cust),
+                customers.get(CustomerStore.CUST_NO, cust), 0, 0, 0);
+    }
 
-                if (seatMatrix[r][c][2] != null) {
-                    seatInfo += seatMatrix[r][c][2];
-                }
+    // Mean minutes of one sale at a seller of the tier, as startService draws them
+    static double meanServiceMinutes(char sellerType) {
+        return sellerType == 'H' ? 1.5 : sellerType == 'M' ? 3.0 : 5.5;
+    }
 
-                System.out.printf("%-12s", seatInfo);
+    // Seats nobody has claimed yet, unbounded when an inventory service holds them
+    int seatsLeft() {
+        return inventory != null ? Integer.MAX_VALUE : venue.available();
+    }
 
-                if (seatMatrix[r][c][0].equals("H")) highCustomers++;
-                if (seatMatrix[r][c][0].equals("M")) mediumCustomers++;
-                if (seatMatrix[r][c][0].equals("L")) lowCustomers++;
-            }
-            System.out.println();
+    // Whether a customer of a party of the given size arriving behind the given number of others
+    // has a prospect of a seat: the queue has room, their own sale is predicted to be done
+    // before the window closes, and the parties ahead, of the mean size, leave seats enough for
+    // theirs. Always true without admission control.
+    boolean admits(int time, char sellerType, int ahead, int party) {
+        if (queueCap > 0 && ahead >= queueCap) {
+            return false;
         }
+        if (admission.equals("off")) {
+            return true;
+        }
+        return ahead * (meanServiceMinutes(sellerType) + 1) + meanServiceMinutes(sellerType) < simulationDuration - time
+                && ahead * (1 + partyMax) / 2.0 + party <= seatsLeft();
+    }
 
-        System.out.println("\n\n");
-        System.out.println("=============================");
-        System.out.println("Multi-threaded Ticket Sellers");
-        System.out.println("Stat for N = " + N);
-        System.out.println("==============================\n");
-        System.out.println(" =============================================================\n");
-        System.out.println("|   | No of Customers | Got Seat | Returned | Throughput|\n");
-        System.out.println(" =============================================================\n");
-        System.out.printf("| H | %15d | %8d | %8d | %.2f \n", highSellerCount * N, highCustomers, (highSellerCount * N) - highCustomers, (highCustomers / 60.0));
-        System.out.printf("| M | %15d | %8d | %8d | %.2f \n", mediumSellerCount * N, mediumCustomers, (mediumSellerCount * N) - mediumCustomers, (mediumCustomers / 60.0));
-        System.out.printf("| L | %15d | %8d | %8d | %.2f \n", lowSellerCount * N, lowCustomers, (lowSellerCount * N) - lowCustomers, (lowCustomers / 60.0));
-        System.out.println(" =============================================================\n");
+    // Minutes a customer arriving behind the given number of others is predicted to wait: a
+    // sale takes its service time and the minute it starts in
+    static int predictedWait(char sellerType, int ahead) {
+        return (int) Math.ceil(ahead * (meanServiceMinutes(sellerType) + 1));
+    }
 
-        System.out.println(" -----------------------------------------------");
-        System.out.println("|    | Avg response Time | Avg turnaround time| (in simulation time units) ");
-        System.out.println(" ------------------------------------------------");
-        System.out.printf("| %3c  | %.2f          | %.2f \t\t|\n", 'H', (double) responseTimeForHigh / (N * 1.0), (double) turnaroundTimeForHigh / (N * 1.0));
-        System.out.printf("| %3c  | %.2f          | %.2f \t\t|\n", 'M', (double) responseTimeForMedium / (3.0 * N), (double) turnaroundTimeForMedium / (3.0 * N));
-        System.out.printf("| %3c  | %.2f          | %.2f \t\t|\n", 'L', (double) responseTimeForLow / (6.0 * N), (double) turnaroundTimeForLow / (6.0 * N));
-        System.out.println(" ------------------------------------------------");
+    // Admission control turned an arriving customer away
+    void customerRejected(int time, char sellerType, int sellerNo, CustomerStore customers, int cust, int ahead) {
+        metricsFor(sellerType).rejected.increment();
+        eventLog.record(EventLog.REJECTED, time, sellerType, sellerNo, customers.get(CustomerStore.SELLER, cust),
+                customers.get(CustomerStore.CUST_NO, cust), predictedWait(sellerType, ahead), ahead, 0);
     }
 
-    // Create seller threads for a given seller type and count
-    public static void createSellerThreads(char sellerType, int numberOfSellers) {
-        // Create all threads
-        for (int tNo = 0; tNo < numberOfSellers; tNo++) {
-            Queue<Customer> sellerQueue = generateCustomerQueue(N);
-            Seller sellerArg = new Seller((char) tNo, sellerType, sellerQueue);
+    // Admission control sent an arriving customer on to a peer of the tier
+    void customerRedirected(int time, char sellerType, int sellerNo, CustomerStore customers, int cust, int ahead, int peerNo) {
+        metricsFor(sellerType).redirected.increment();
+        eventLog.record(EventLog.REDIRECTED, time, sellerType, sellerNo, customers.get(CustomerStore.SELLER, cust),
+                customers.get(CustomerStore.CUST_NO, cust), predictedWait(sellerType, ahead), ahead, peerNo);
+    }
+
+    // A seller starts serving a customer, returns the minutes the sale will take
+    int startService(int time, char sellerType, int sellerNo, CustomerStore customers, int cust, SplittableRandom random) {
+        int serviceTime = 0;
+        int responseTime = time - customers.get(CustomerStore.ARRIVAL, cust);
+        customers.set(CustomerStore.RESPONSE, cust, responseTime);
+        metricsFor(sellerType).recordResponse(responseTime);
+        eventLog.record(EventLog.SERVING, time, sellerType, sellerNo, customers.get(CustomerStore.SELLER, cust),
+                customers.get(CustomerStore.CUST_NO, cust), responseTime, 0, 0);
+
+        switch (sellerType) {
+            case 'H':
+                serviceTime = random.nextInt(1, 3);
+                break;
+            case 'M':
+                serviceTime = random.nextInt(2, 5);
+                break;
+            case 'L':
+                serviceTime = random.nextInt(4, 8);
+        }
+        customers.set(CustomerStore.SERVICE, cust, serviceTime);
 
-            threadCountLock.lock();
-            threadCount++;
-            threadCountLock.unlock();
+        // With holds the seat is taken now and kept while the customer decides, parties are only
+        // seated when the sale is done
+        if (holds != null && customers.get(CustomerStore.PARTY, cust) == 1) {
+            int seatIndex = findAvailableSeat(sellerType);
+            if (seatIndex != -1) {
+                int expiresAt = time + holdMinutes;
+                holds.hold(seatIndex, expiresAt, SeatInventory.tierIndex(sellerType), sellerNo,
+                        customers.get(CustomerStore.SELLER, cust), customers.get(CustomerStore.CUST_NO, cust));
+                customers.set(CustomerStore.SEAT, cust, seatIndex);
+                metricsFor(sellerType).held.increment();
+                eventLog.record(EventLog.HELD, time, sellerType, sellerNo, customers.get(CustomerStore.SELLER, cust),
+                        customers.get(CustomerStore.CUST_NO, cust), seatIndex / concertCols, seatIndex % concertCols, expiresAt);
+            }
+        }
+        return serviceTime;
+    }
 
-            sellerThreads[tNo] = new Thread(() -> sell(sellerArg));
-            sellerThreads[tNo].start();
+    // A seller completes the sale: assigns the next seat in its order or reports the concert sold out.
+    // The seat is claimed lock-free, after that its labels belong to this seller alone.
+    void completeSale(int time, char sellerType, int sellerNo, CustomerStore customers, int cust, SplittableRandom decisions) {
+        Flight.SaleCommit event = new Flight.SaleCommit();
+        event.begin();
+        int seat = makeSale(time, sellerType, sellerNo, customers, cust, decisions);
+        if (event.shouldCommit()) {
+            event.tier = sellerType;
+            event.sellerNo = sellerNo;
+            event.minute = time;
+            event.seat = seat;
+            event.commit();
         }
     }
 
-    // Wait for all threads to finish serving the current time slice
-    public static void waitForThreadToServeCurrentTimeSlice() {
-        while (true) {
-            threadWaitingLock.lock();
-            if (threadsWaitingForClockTick == activeThread) {
-                threadsWaitingForClockTick = 0;
-                threadWaitingLock.unlock();
-                break;
+    // The sale itself, returns the seat sold or -1
+    int makeSale(int time, char sellerType, int sellerNo, CustomerStore customers, int cust, SplittableRandom decisions) {
+        int custNo = customers.get(CustomerStore.CUST_NO, cust);
+        int queuedAt = customers.get(CustomerStore.SELLER, cust);
+        int seatIndex = -1;
+        int held = holds == null ? -1 : customers.get(CustomerStore.SEAT, cust);
+        // Holds only run out between ticks, so one still standing here stands until the sale is done.
+        // A hold that ran out may have been followed by another customer's hold on the same seat.
+        if (held != -1 && holds.isHeldBy(held, SeatInventory.tierIndex(sellerType), queuedAt, custNo)) {
+            if (decisions.nextInt(100) < abandonPercent) {
+                // The customer walks away and the hold runs out on its own
+                metricsFor(sellerType).abandoned.increment();
+                eventLog.record(EventLog.ABANDONED, time, sellerType, sellerNo, queuedAt, custNo, held / concertCols,
+                        held % concertCols, holds.expiresAt[held]);
+                return -1;
+            }
+            if (holds.confirm(held)) {
+                seatIndex = held;
             }
-            threadWaitingLock.unlock();
         }
+        // Find available seats, unless the customer's hold still stands
+        int party = customers.get(CustomerStore.PARTY, cust);
+        if (seatIndex == -1) {
+            seatIndex = findAvailableSeats(sellerType, party);
+        }
+        if (seatIndex == -1 && party > 1) {
+            metricsFor(sellerType).noBlock.increment();
+            eventLog.record(EventLog.NO_BLOCK, time, sellerType, sellerNo, queuedAt, custNo, party, 0, 0);
+        } else if (seatIndex == -1) {
+            eventLog.record(EventLog.SOLD_OUT, time, sellerType, sellerNo, queuedAt, custNo, 0, 0, 0);
+        } else {
+            int turnaroundTime = customers.get(CustomerStore.TURNAROUND, cust) + time;
+            customers.set(CustomerStore.TURNAROUND, cust, turnaroundTime);
+            String label = EventLog.appendCustomer(new StringBuilder(8), sellerType, queuedAt, custNo).toString();
+            // A party's seats are logged one by one, only the first carries the customer's response time
+            for (int seat = seatIndex; seat < seatIndex + party; seat++) {
+                seatChart.assign(seat, label);
+                if (seatLog != null) {
+                    seatLog.append(seat, time, sellerType, sellerNo, queuedAt, custNo,
+                            seat == seatIndex ? customers.get(CustomerStore.RESPONSE, cust) : -1);
+                }
+                // Every seat but a party's last says more follow, so a sale's chart is printed once
+                eventLog.record(seat == seatIndex + party - 1 ? EventLog.ASSIGNED : EventLog.ASSIGNED_MORE, time, sellerType,
+                        sellerNo, queuedAt, custNo, seat / concertCols, seat % concertCols, turnaroundTime);
+            }
+            metricsFor(sellerType).recordSale(turnaroundTime);
+            metricsFor(sellerType).seats.add(party);
+        }
+        return seatIndex;
     }
 
-    // Wake up all seller threads
-    public static void wakeupAllSellerThreads() {
-        conditionLock.lock();
-        condition.signalAll();
-        conditionLock.unlock();
+    // The window closed before the customer was sold a ticket, a hold of a customer still in
+    // service lapses with the sale and its seat goes back
+    void saleClosed(int time, char sellerType, int sellerNo, CustomerStore customers, int cust) {
+        int queuedAt = customers.get(CustomerStore.SELLER, cust);
+        int custNo = customers.get(CustomerStore.CUST_NO, cust);
+        eventLog.record(EventLog.CLOSED, time, sellerType, sellerNo, queuedAt, custNo, 0, 0, 0);
+        int held = holds == null ? -1 : customers.get(CustomerStore.SEAT, cust);
+        if (held != -1 && holds.isHeldBy(held, SeatInventory.tierIndex(sellerType), queuedAt, custNo) && holds.lapse(held)) {
+            holdExpired(time, held);
+        }
     }
 
-    // Logic to simulate the behavior of a seller
-    public static void sell(Seller args) {
-        // Initializing thread
-        char sellerType = args.sellerType;
-        int sellerNo;
+    // Event Log Structure
+    // Sellers append compact int records to a buffer of their own thread and never touch the
+    // console. Full buffers, and every buffer at the end of a tick, are handed to a background
+    // writer that formats them in batches, so console or file I/O never serializes the sellers.
+    static class EventLog {
+        static final int ARRIVED = 0;
+        static final int SERVING = 1;
+        static final int ASSIGNED = 2;
+        static final int SOLD_OUT = 3;
+        static final int CLOSED = 4;
+        static final int HELD = 5;
+        static final int ABANDONED = 6;
+        static final int EXPIRED = 7;
+        static final int NO_BLOCK = 8;
+        static final int REJECTED = 9;
+        static final int REDIRECTED = 10;
+        static final int ASSIGNED_MORE = 11;  // A seat of a party whose other seats follow, logged as ASSIGNED
 
-        if (sellerType == 'H') {
-            sellerNo = 0;
-        } else {
-            sellerNo = args.sellerNo + 1;
+        static final int recordInts = 9;  // time, type, seller type, seller no, customer no, a, b, c, customer's seller no
+        static final int recordsPerBuffer = 512;
+        static final int binaryMagic = 0x544b4532;  // "TKE2"
+
+        // Records of one thread, handed to the writer as a whole
+        static class Buffer {
+            final int[] records = new int[recordsPerBuffer * recordInts];
+            int count = 0;
         }
 
-        Queue<Customer> customerQueue = args.sellerQueue;
-        Queue<Customer> sellerQueue = new LinkedList<>();
+        final String mode;  // text, binary or off
+        final boolean enabled;
+        final BlockingQueue<Buffer> filled = new ArrayBlockingQueue<>(1024);
+        final Queue<Buffer> free = new ConcurrentLinkedQueue<>();
+        final ThreadLocal<Buffer> current = new ThreadLocal<>();
+        final Buffer endOfLog = new Buffer();
+        final Writer textOut;
+        final DataOutputStream binaryOut;
+        final boolean toFile;
+        final Thread writer;
+        SeatChart replay;  // Chart the writer prints after every sale it logs, --chart=sale
+        volatile IOException failure;  // First write that failed, the log is dropped from then on
+
+        // Start a log in the given mode, writing to the file or to standard output when it is null
+        EventLog(String mode, String file) throws IOException {
+            this.mode = mode;
+            this.enabled = !mode.equals("off");
+            this.toFile = file != null;
+            if (mode.equals("text")) {
+                textOut = new BufferedWriter(file == null ? new OutputStreamWriter(System.out) : new FileWriter(file), 1 << 16);
+                binaryOut = null;
+            } else if (mode.equals("binary")) {
+                textOut = null;
+                binaryOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file == null ? "events.bin" : file), 1 << 16));
+                binaryOut.writeInt(binaryMagic);
+            } else if (mode.equals("off")) {
+                textOut = null;
+                binaryOut = null;
+            } else {
+                throw new IllegalArgumentException("Unknown log mode: " + mode);
+            }
 
-        threadCountLock.lock();
-        threadCount--;
-        activeThread++;
-        threadCountLock.unlock();
+            writer = new Thread(this::drain, "event-log-writer");
+            writer.setDaemon(true);
+            if (enabled) {
+                writer.start();
+            }
+        }
 
-        Customer cust = null;
-        int randomWaitTime = 0;
+        // Append one event about a customer who queued at the acting seller
+        void record(int type, int time, char sellerType, int sellerNo, int custNo, int a, int b, int c) {
+            record(type, time, sellerType, sellerNo, sellerNo, custNo, a, b, c);
+        }
 
-        while (simulationTime < simulationDuration) {
-            // Waiting for clock tick
-            conditionLock.lock();
-            threadWaitingLock.lock();
-            threadsWaitingForClockTick++;
-            threadWaitingLock.unlock();
+        // Append one event to the calling thread's buffer, queuedAt is the seller whose queue the
+        // customer joined, which differs from the acting seller for a stolen customer
+        void record(int type, int time, char sellerType, int sellerNo, int queuedAt, int custNo, int a, int b, int c) {
+            if (!enabled || failure != null) {
+                return;
+            }
+            Buffer buffer = current.get();
+            if (buffer == null) {
+                buffer = newBuffer();
+                current.set(buffer);
+            }
+            int i = buffer.count * recordInts;
+            int[] r = buffer.records;
+            r[i] = time;
+            r[i + 1] = type;
+            r[i + 2] = sellerType;
+            r[i + 3] = sellerNo;
+            r[i + 4] = custNo;
+            r[i + 5] = a;
+            r[i + 6] = b;
+            r[i + 7] = c;
+            r[i + 8] = queuedAt;
+            if (++buffer.count == recordsPerBuffer) {
+                flush();
+            }
+        }
 
+        // Hand the calling thread's records to the writer
+        void flush() {
+            Buffer buffer = current.get();
+            if (buffer == null || buffer.count == 0) {
+                return;
+            }
+            current.set(null);
+            hand(buffer);
+        }
+
+        // Flush the calling thread, wait until the writer has written everything and close the
+        // output, throws the first write that failed
+        void close() throws IOException {
+            if (!enabled) {
+                return;
+            }
+            flush();
+            hand(endOfLog);
             try {
-                condition.await();
+                writer.join();
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                Thread.currentThread().interrupt();
             }
+            try {
+                if (textOut != null && failure == null) {
+                    textOut.flush();
+                }
+                if (textOut != null && toFile) {
+                    textOut.close();
+                }
+                if (binaryOut != null) {
+                    binaryOut.close();
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Event log write failed, events after the failure were dropped", failure);
+            }
+        }
 
-            conditionLock.unlock();
+        Buffer newBuffer() {
+            Buffer buffer = free.poll();
+            return buffer != null ? buffer : new Buffer();
+        }
 
-            // Sell
-            if (simulationTime == simulationDuration)
-                break;
+        void hand(Buffer buffer) {
+            try {
+                filled.put(buffer);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-            // All New Customers Arrived
-            while (!customerQueue.isEmpty() && customerQueue.peek().arrivalTime <= simulationTime) {
-                Customer temp = customerQueue.poll();
-                sellerQueue.add(temp);
-                System.out.println("00:" + String.format("%02d", simulationTime) + " " + sellerType + sellerNo + " " + "Customer No "
-                        + sellerType + sellerNo + String.format("%02d", (int) temp.custNo) + " arrived");
-            }
-
-            // Serve the next customer
-            if (cust == null && !sellerQueue.isEmpty()) {
-                cust = sellerQueue.poll();
-                cust.responseTime = simulationTime - cust.arrivalTime;
-                System.out.println("00:" + String.format("%02d", simulationTime) + " " + sellerType + sellerNo + " " + "Serving Customer No "
-                        + sellerType + sellerNo + String.format("%02d", (int) cust.custNo) + " with a response time of " + cust.responseTime);
-
-                switch (sellerType) {
-                    case 'H':
-                        randomWaitTime = (int) (Math.random() * 2) + 1;
-                        responseTimeForHigh += cust.responseTime;
-                        break;
-                    case 'M':
-                        randomWaitTime = (int) (Math.random() * 3) + 2;
-                        responseTimeForMedium += cust.responseTime;
-                        break;
-                    case 'L':
-                        randomWaitTime = (int) (Math.random() * 4) + 4;
-                        responseTimeForLow += cust.responseTime;
+        // Writer thread: format whatever buffers are waiting, flush the output once the queue runs
+        // dry. After a write fails it keeps taking buffers and drops them, so sellers never block
+        // on a full queue, and close() reports the failure.
+        void drain() {
+            StringBuilder line = new StringBuilder(128);
+            try {
+                while (true) {
+                    Buffer buffer = filled.poll();
+                    if (buffer == null) {
+                        if (textOut != null && failure == null) {
+                            try {
+                                textOut.flush();
+                            } catch (IOException e) {
+                                failure = e;
+                            }
+                        }
+                        buffer = filled.take();
+                    }
+                    if (buffer == endOfLog) {
+                        return;
+                    }
+                    if (failure == null) {
+                        try {
+                            write(buffer, line);
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                    buffer.count = 0;
+                    free.add(buffer);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
 
-            if (cust != null) {
-                if (randomWaitTime == 0) {
-                    // Selling a seat
-                    reservationLock.lock();
-
-                    // Find an available seat
-                    int seatIndex = findAvailableSeat(sellerType);
-                    if (seatIndex == -1) {
-                        System.out.println("00:" + String.format("%02d", simulationTime) + " " + sellerType + sellerNo + " Customer No "
-                                + sellerType + sellerNo + String.format("%02d", (int) cust.custNo) + " has been told the concert is Sold Out.");
-                    } else {
-                        int rowNo = seatIndex / concertCols;
-                        int colNo = seatIndex % concertCols;
-                        cust.turnaroundTime += simulationTime;
-                        seatMatrix[rowNo][colNo][0] = String.valueOf(sellerType);
-                        seatMatrix[rowNo][colNo][1] = String.valueOf(sellerNo);
-                        seatMatrix[rowNo][colNo][2] = String.format("%02d", (int) cust.custNo);
-
-                        System.out.println("00:" + String.format("%02d", simulationTime) + " " + sellerType + sellerNo + " Customer No "
-                                + sellerType + sellerNo + String.format("%02d", (int) cust.custNo) + " assigned seat " + rowNo + "," + colNo
-                                + " with a turnaround time of " + cust.turnaroundTime);
-
-                        if (sellerType == 'H') {
-                            turnaroundTimeForHigh += cust.turnaroundTime;
-                        } else if (sellerType == 'M') {
-                            turnaroundTimeForMedium += cust.turnaroundTime;
-                        } else if (sellerType == 'L') {
-                            turnaroundTimeForLow += cust.turnaroundTime;
+        void write(Buffer buffer, StringBuilder line) throws IOException {
+            int[] r = buffer.records;
+            for (int i = 0; i < buffer.count * recordInts; i += recordInts) {
+                if (textOut != null) {
+                    line.setLength(0);
+                    format(line, r, i);
+                    if (replay != null && (r[i + 1] == ASSIGNED || r[i + 1] == ASSIGNED_MORE)) {
+                        replay.assign(r[i + 5] * replay.cols + r[i + 6],
+                                appendCustomer(new StringBuilder(8), (char) r[i + 2], r[i + 8], r[i + 4]).toString());
+                        if (r[i + 1] == ASSIGNED) {
+                            replay.snapshot().appendTo(line);
                         }
                     }
-                    reservationLock.unlock();
-                    cust = null;
+                    textOut.write(line.toString());
                 } else {
-                    randomWaitTime--;
+                    for (int k = 0; k < recordInts; k++) {
+                        binaryOut.writeInt(r[i + k]);
+                    }
                 }
             }
         }
 
-        while (cust != null || !sellerQueue.isEmpty()) {
-            if (cust == null)
-                cust = sellerQueue.poll();
-            System.out.println("00:" + String.format("%02d", simulationTime) + " " + sellerType + sellerNo + " Ticket" + " Sale Closed. Customer No " + sellerType + sellerNo + String.format("%02d", (int) cust.custNo) + " Leaves");
-            cust = null;
+        // Format one record as the event line the simulator has always printed
+        static void format(StringBuilder line, int[] r, int i) {
+            int time = r[i];
+            char sellerType = (char) r[i + 2];
+            int sellerNo = r[i + 3];
+            int queuedAt = r[i + 8];
+            appendTwoDigits(line, time / 60).append(':');
+            appendTwoDigits(line, time % 60).append(' ').append(sellerType).append(sellerNo).append(' ');
+            switch (r[i + 1]) {
+                case ARRIVED:
+                    appendCustomer(line.append("Customer No "), sellerType, queuedAt, r[i + 4]).append(" arrived");
+                    break;
+                case SERVING:
+                    appendCustomer(line.append("Serving Customer No "), sellerType, queuedAt, r[i + 4])
+                            .append(" with a response time of ").append(r[i + 5]);
+                    break;
+                case ASSIGNED:
+                case ASSIGNED_MORE:
+                    appendCustomer(line.append("Customer No "), sellerType, queuedAt, r[i + 4])
+                            .append(" assigned seat ").append(r[i + 5]).append(',').append(r[i + 6])
+                            .append(" with a turnaround time of ").append(r[i + 7]);
+                    break;
+                case SOLD_OUT:
+                    appendCustomer(line.append("Customer No "), sellerType, queuedAt, r[i + 4])
+                            .append(" has been told the concert is Sold Out.");
+                    break;
+                case CLOSED:
+                    appendCustomer(line.append("Ticket Sale Closed. Customer No "), sellerType, queuedAt, r[i + 4])
+                            .append(" Leaves");
+                    break;
+                case HELD:
+                    appendCustomer(line.append("Customer No "), sellerType, queuedAt, r[i + 4])
+                            .append(" holds seat ").append(r[i + 5]).append(',').append(r[i + 6]).append(" until ");
+                    appendTwoDigits(appendTwoDigits(line, r[i + 7] / 60).append(':'), r[i + 7] % 60);
+                    break;
+                case ABANDONED:
+                    appendCustomer(line.append("Customer No "), sellerType, queuedAt, r[i + 4])
+                            .append(" leaves without buying, seat ").append(r[i + 5]).append(',').append(r[i + 6])
+                            .append(" stays held until ");
+                    appendTwoDigits(appendTwoDigits(line, r[i + 7] / 60).append(':'), r[i + 7] % 60);
+                    break;
+                case EXPIRED:
+                    appendCustomer(line.append("Hold of Customer No "), sellerType, queuedAt, r[i + 4])
+                            .append(" on seat ").append(r[i + 5]).append(',').append(r[i + 6]).append(" expired");
+                    break;
+                case NO_BLOCK:
+                    appendCustomer(line.append("Customer No "), sellerType, queuedAt, r[i + 4])
+                            .append(" finds no ").append(r[i + 5]).append(" seats together and leaves");
+                    break;
+                case REJECTED:
+                    appendCustomer(line.append("Customer No "), sellerType, queuedAt, r[i + 4])
+                            .append(" is turned away on arrival, ").append(r[i + 6]).append(" ahead, predicted wait ")
+                            .append(r[i + 5]).append(" min");
+                    break;
+                case REDIRECTED:
+                    appendCustomer(line.append("Customer No "), sellerType, queuedAt, r[i + 4])
+                            .append(" is sent on to ").append(sellerType).append(r[i + 7]).append(", ").append(r[i + 6])
+                            .append(" ahead here, predicted wait ").append(r[i + 5]).append(" min");
+            }
+            line.append(System.lineSeparator());
         }
 
-        threadCountLock.lock();
-        activeThread--;
-        threadCountLock.unlock();
-    }
+        static StringBuilder appendCustomer(StringBuilder line, char sellerType, int sellerNo, int custNo) {
+            return appendTwoDigits(line.append(sellerType).append(sellerNo), custNo);
+        }
 
-    // Find an available seat for a given seller type
-    public static int findAvailableSeat(char sellerType) {
-        int seatIndex = -1;
+        static StringBuilder appendTwoDigits(StringBuilder line, int value) {
+            if (value < 10) {
+                line.append('0');
+            }
+            return line.append(value);
+        }
 
-        if (sellerType == 'H') {
-            for (int rowNo = 0; rowNo < concertRows; rowNo++) {
-                for (int colNo = 0; colNo < concertCols; colNo++) {
-                    if (seatMatrix[rowNo][colNo][0].equals("-")) {
-                        seatIndex = rowNo * concertCols + colNo;
-                        return seatIndex;
-                    }
-                }
-            }
-        } else if (sellerType == 'M') {
-            int mid = concertRows / 2;
-            int rowJump = 0;
-            for (rowJump = 0; ; rowJump++) {
-                int rowNo = mid + rowJump;
-                if (mid + rowJump < concertRows) {
-                    for (int colNo = 0; colNo < concertCols; colNo++) {
-                        if (seatMatrix[rowNo][colNo][0].equals("-")) {
-                            seatIndex = rowNo * concertCols + colNo;
-                            return seatIndex;
+        // Print a binary trace as text
+        static void decode(String file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != binaryMagic) {
+                    throw new IOException(file + " is not a binary event trace");
+                }
+                int[] r = new int[recordInts];
+                StringBuilder line = new StringBuilder(128);
+                while (true) {
+                    try {
+                        for (int k = 0; k < recordInts; k++) {
+                            r[k] = in.readInt();
                         }
+                    } catch (EOFException e) {
+                        break;
                     }
+                    line.setLength(0);
+                    format(line, r, 0);
+                    System.out.print(line);
                 }
-                rowNo = mid - rowJump;
-                if (mid - rowJump >= 0) {
-                    for (int colNo = 0; colNo < concertCols; colNo++) {
-                        if (seatMatrix[rowNo][colNo][0].equals("-")) {
-                            seatIndex = rowNo * concertCols + colNo;
-                            return seatIndex;
+            }
+        }
+    }
+
+    // Event Structure for the discrete-event engine
+    // Events at the same minute run arrivals first, then service starts, then completed sales,
+    // which is the order a seller thread handles them within one tick.
+    static class Event {
+        static final int ARRIVAL = 0;
+        static final int SERVICE_START = 1;
+        static final int SALE_COMPLETE = 2;
+        static final int WINDOW_CLOSE = 3;
+
+        int time;  // Minute the event happens at
+        int type;  // One of the event types above
+        long seq;  // Insertion order, keeps same-time events of one type in FIFO order
+        EventSeller seller;  // Seller the event belongs to
+        int cust;  // Slot of the customer arriving, -1 for other events
+
+        Event(int time, int type, long seq, EventSeller seller, int cust) {
+            this.time = time;
+            this.type = type;
+            this.seq = seq;
+            this.seller = seller;
+            this.cust = cust;
+        }
+    }
+
+    // Seller state driven by events instead of its own thread
+    static class EventSeller {
+        char sellerType;
+        int sellerNo;
+        CustomerStore customers;  // This seller's customers, from arrival until they leave
+        IntRing sellerQueue = new IntRing();  // Slots of the customers waiting at the window
+        int cust = -1;  // Slot of the customer being served, -1 when the window is free
+        StealTier tier;  // Peers of this seller's tier, when --steal is on
+        EventSeller[] peers;  // Sellers of this tier, this one included, when --admit=redirect
+        boolean idleListed = false;  // In tier.idle
+        boolean backlogListed = false;  // In tier.backlogged
+        boolean startScheduled = false;  // A SERVICE_START event is pending
+        int nextStart = 0;  // Earliest minute the next customer can be served
+        SplittableRandom random;  // This seller's own random stream
+        SplittableRandom decisions;  // Whether held customers buy, when --hold is on
+        ArrivalStream arrivals;  // Customers still to arrive
+        int index;  // Creation order, same-minute events of different sellers run in this order
+
+        EventSeller(char sellerType, int sellerNo, SplittableRandom random, int index) {
+            this.sellerType = sellerType;
+            this.sellerNo = sellerNo;
+            this.random = random;
+            this.index = index;
+        }
+    }
+
+    // Sellers of one tier that can give or take a customer, listed lazily: an entry is checked
+    // when it is taken, so a seller that stopped being idle or backlogged is just skipped
+    static class StealTier {
+        final Queue<EventSeller> idle = new ArrayDeque<>();  // Window free and nobody waiting
+        final Queue<EventSeller> backlogged = new ArrayDeque<>();  // Customers waiting behind the next one
+    }
+
+    PriorityQueue<Event> eventQueue;
+    long eventSeq = 0;
+    int eventSellerCount = 0;
+
+    void schedule(int time, int type, EventSeller seller, int cust) {
+        eventQueue.add(new Event(time, type, eventSeq++, seller, cust));
+    }
+
+    // Run the simulation from one priority queue of timestamped events. Minutes in which nothing
+    // happens are skipped, so the cost grows with the number of events, not sellers x minutes.
+    public void runEventEngine() {
+        eventQueue = new PriorityQueue<>(Comparator.<Event>comparingInt(e -> e.time)
+                .thenComparingInt(e -> e.type)
+                .thenComparingInt(e -> e.seller.index)
+                .thenComparingLong(e -> e.seq));
+        eventSeq = 0;
+        eventSellerCount = 0;
+
+        createEventSellers('H', highSellerCount);
+        createEventSellers('M', mediumSellerCount);
+        createEventSellers('L', lowSellerCount);
+
+        while (!eventQueue.isEmpty()) {
+            Event event = eventQueue.poll();
+            EventSeller seller = event.seller;
+            while (simulationTime < event.time) {
+                minuteServed(simulationTime++);
+            }
+
+            switch (event.type) {
+                case Event.ARRIVAL:
+                    customerArrived(event.time, seller.sellerType, seller.sellerNo, seller.customers, event.cust);
+                    scheduleNextArrival(seller);
+                    EventSeller joined = admit(seller, event.time, event.cust);
+                    if (joined != null) {
+                        scheduleNextService(joined, event.time);
+                        if (joined.tier != null && waiting(joined) > 0) {
+                            handToIdlePeer(joined, event.time);
                         }
                     }
-                }
-                if (mid + rowJump >= concertRows && mid - rowJump < 0) {
                     break;
-                }
-            }
-        } else if (sellerType == 'L') {
-            for (int rowNo = concertRows - 1; rowNo >= 0; rowNo--) {
-                for (int colNo = concertCols - 1; colNo >= 0; colNo--) {
-                    if (seatMatrix[rowNo][colNo][0].equals("-")) {
-                        seatIndex = rowNo * concertCols + colNo;
-                        return seatIndex;
+                case Event.SERVICE_START:
+                    seller.startScheduled = false;
+                    seller.cust = seller.sellerQueue.poll();
+                    queueDepth(event.time, seller.sellerType, seller.sellerNo, seller.sellerQueue.size);
+                    int serviceTime = startService(event.time, seller.sellerType, seller.sellerNo, seller.customers, seller.cust, seller.random);
+                    // A sale still in progress when the hour ends is dropped at the window close
+                    if (event.time + serviceTime < simulationDuration) {
+                        schedule(event.time + serviceTime, Event.SALE_COMPLETE, seller, -1);
+                    }
+                    break;
+                case Event.SALE_COMPLETE:
+                    completeSale(event.time, seller.sellerType, seller.sellerNo, seller.customers, seller.cust, seller.decisions);
+                    seller.customers.free(seller.cust);
+                    seller.cust = -1;
+                    seller.nextStart = event.time + 1;
+                    if (seller.tier != null && seller.sellerQueue.isEmpty()) {
+                        stealFromBackloggedPeer(seller);
+                    }
+                    scheduleNextService(seller, event.time);
+                    break;
+                case Event.WINDOW_CLOSE:
+                    while (seller.cust != -1 || !seller.sellerQueue.isEmpty()) {
+                        if (seller.cust == -1)
+                            seller.cust = seller.sellerQueue.poll();
+                        saleClosed(event.time, seller.sellerType, seller.sellerNo, seller.customers, seller.cust);
+                        seller.customers.free(seller.cust);
+                        seller.cust = -1;
                     }
+            }
+        }
+    }
+
+    // Create the event-driven sellers of one type with their first arrival and window close
+    void createEventSellers(char sellerType, int numberOfSellers) {
+        StealTier tier = steal ? new StealTier() : null;
+        EventSeller[] peers = admission.equals("redirect") ? new EventSeller[numberOfSellers] : null;
+        for (int tNo = 0; tNo < numberOfSellers; tNo++) {
+            SplittableRandom random = sellerStreams.split();
+            EventSeller seller = new EventSeller(sellerType, sellerNumber(sellerType, tNo), random, eventSellerCount++);
+            if (peers != null) {
+                peers[tNo] = seller;
+                seller.peers = peers;
+            }
+            seller.arrivals = newArrivalStream(random);
+            seller.customers = newCustomerStore(seller.sellerNo);
+            seller.decisions = newDecisionStream(random);
+            if (tier != null) {
+                seller.tier = tier;
+                seller.idleListed = true;
+                tier.idle.add(seller);
+            }
+
+            scheduleNextArrival(seller);
+            schedule(simulationDuration, Event.WINDOW_CLOSE, seller, -1);
+        }
+    }
+
+    // Only a seller's next arrival is ever queued, so the event queue stays O(sellers) for any N
+    void scheduleNextArrival(EventSeller seller) {
+        int time = seller.arrivals.nextArrivalTime();
+        if (time != -1) {
+            schedule(time, Event.ARRIVAL, seller, seller.arrivals.next(seller.customers));
+        }
+    }
+
+    // Customers waiting or in service at a seller
+    static int ahead(EventSeller seller) {
+        return seller.sellerQueue.size + (seller.cust != -1 ? 1 : 0);
+    }
+
+    // Admission control for a customer arriving at the seller: returns the seller whose queue they
+    // joined, this one or the peer of the tier with the fewest customers ahead, or null when they
+    // were turned away
+    EventSeller admit(EventSeller seller, int time, int cust) {
+        int ahead = ahead(seller);
+        int party = seller.customers.get(CustomerStore.PARTY, cust);
+        if (admits(time, seller.sellerType, ahead, party)) {
+            metricsFor(seller.sellerType).maxQueue.accumulate(ahead + 1);
+            seller.sellerQueue.add(cust);
+            return seller;
+        }
+        EventSeller target = null;
+        if (seller.peers != null) {
+            for (EventSeller peer : seller.peers) {
+                if (peer != seller && (target == null || ahead(peer) < ahead(target))) {
+                    target = peer;
                 }
             }
         }
+        if (target != null && admits(time, seller.sellerType, ahead(target), party)) {
+            metricsFor(seller.sellerType).maxQueue.accumulate(ahead(target) + 1);
+            customerRedirected(time, seller.sellerType, seller.sellerNo, seller.customers, cust, ahead, target.sellerNo);
+            target.sellerQueue.add(target.customers.adopt(seller.customers, cust));
+            seller.customers.free(cust);
+            return target;
+        }
+        customerRejected(time, seller.sellerType, seller.sellerNo, seller.customers, cust, ahead);
+        seller.customers.free(cust);
+        return null;
+    }
 
-        return -1;
+    // Customers waiting at a seller that it won't start serving next
+    static int waiting(EventSeller seller) {
+        return seller.sellerQueue.size - (seller.startScheduled ? 1 : 0);
     }
 
-    // Generate a customer queue with random arrival times
-    public static Queue<Customer> generateCustomerQueue(int N) {
-        Queue<Customer> customerQueue = new LinkedList<>();
-        char custNo = 0;
+    // A customer queued behind others: the first idle peer of the tier takes the newest one,
+    // otherwise the seller is listed as backlogged for the next peer that comes free
+    void handToIdlePeer(EventSeller seller, int time) {
+        StealTier tier = seller.tier;
+        while (!tier.idle.isEmpty()) {
+            EventSeller peer = tier.idle.poll();
+            peer.idleListed = false;
+            if (peer != seller && peer.cust == -1 && !peer.startScheduled && peer.sellerQueue.isEmpty()) {
+                takeNewest(peer, seller);
+                scheduleNextService(peer, time);
+                return;
+            }
+        }
+        if (!seller.backlogListed) {
+            seller.backlogListed = true;
+            tier.backlogged.add(seller);
+        }
+    }
 
-        while (N-- > 0) {
-            int arrivalTime = (int) (Math.random() * simulationDuration);
-            Customer cust = new Customer(custNo, arrivalTime);
-            customerQueue.add(cust);
-            custNo++;
+    // A seller came free with nobody waiting: take the newest customer of a backlogged peer,
+    // otherwise the seller is listed as idle for the next customer that has to wait
+    void stealFromBackloggedPeer(EventSeller seller) {
+        StealTier tier = seller.tier;
+        while (!tier.backlogged.isEmpty()) {
+            EventSeller victim = tier.backlogged.poll();
+            victim.backlogListed = false;
+            if (victim != seller && waiting(victim) > 0) {
+                takeNewest(seller, victim);
+                if (waiting(victim) > 0) {
+                    victim.backlogListed = true;
+                    tier.backlogged.add(victim);
+                }
+                return;
+            }
         }
+        if (!seller.idleListed) {
+            seller.idleListed = true;
+            tier.idle.add(seller);
+        }
+    }
 
-        customerQueue = sortCustomerQueue(customerQueue);
-        custNo = 0;
+    // Move the newest customer waiting at the victim into the thief's queue
+    void takeNewest(EventSeller thief, EventSeller victim) {
+        int slot = victim.sellerQueue.pollLast();
+        thief.sellerQueue.add(thief.customers.adopt(victim.customers, slot));
+        victim.customers.free(slot);
+        metricsFor(thief.sellerType).stolen.increment();
+    }
 
-        for (Customer cust : customerQueue) {
-            custNo++;
-            cust.custNo = custNo;
+    // Schedule serving the next queued customer once the seller is free
+    void scheduleNextService(EventSeller seller, int time) {
+        if (seller.cust != -1 || seller.startScheduled || seller.sellerQueue.isEmpty()) {
+            return;
+        }
+        int start = Math.max(time, seller.nextStart);
+        if (start < simulationDuration) {
+            seller.startScheduled = true;
+            schedule(start, Event.SERVICE_START, seller, -1);
         }
+    }
+
+    // Find and claim an available seat for a given seller type
+    public int findAvailableSeat(char sellerType) {
+        return findAvailableSeats(sellerType, 1);
+    }
 
-        return customerQueue;
+    // Find and claim k adjacent seats in one row, returns the first seat or -1
+    int findAvailableSeats(char sellerType, int k) {
+        Flight.SeatSearch event = new Flight.SeatSearch();
+        event.begin();
+        int seat = inventory != null ? inventory.reserve(concertId, sellerType, k).join() : venue.claimGroup(sellerType, k);
+        if (event.shouldCommit()) {
+            event.tier = sellerType;
+            event.party = k;
+            event.seat = seat;
+            event.commit();
+        }
+        return seat;
     }
 
-    // Sort a customer queue based on arrival time
-    public static Queue<Customer> sortCustomerQueue(Queue<Customer> customerQueue) {
-        // Convert the Queue to an ArrayList
-        List<Customer> customerList = new ArrayList<>(customerQueue);
+    // Arrival Stream Structure
+    // Hands out one seller's customers lazily, in arrival order, holding only the current minute.
+    // Uniform arrivals draw each minute's head count in turn as Binomial(customers left, 1 / minutes
+    // left), which is exactly how N sorted uniform arrival minutes fall, without ever holding them.
+    // Poisson arrivals draw each minute's head count as Poisson(N / minutes).
+    static class ArrivalStream {
+        final SplittableRandom random;
+        final int duration;
+        final boolean poisson;
+        final double ratePerMinute;
+        long unplaced;  // Uniform arrivals not given a minute yet
+        int minute = -1;  // Minute whose arrivals are being handed out
+        long dueThisMinute = 0;  // Arrivals left in that minute
+        int nextCustNo = 1;
+        SplittableRandom parties;  // Draws party sizes of 1 to partyMax, null when everyone buys one seat
+        int partyMax = 1;
+
+        ArrivalStream(long customers, int duration, boolean poisson, SplittableRandom random) {
+            this.random = random;
+            this.duration = duration;
+            this.poisson = poisson;
+            this.ratePerMinute = customers / (double) duration;
+            this.unplaced = customers;
+        }
+
+        // Minute of the next arrival, or -1 once every customer has arrived
+        int nextArrivalTime() {
+            while (dueThisMinute == 0 && minute < duration) {
+                minute++;
+                if (minute < duration) {
+                    dueThisMinute = poisson ? poisson(ratePerMinute) : binomial(unplaced, 1.0 / (duration - minute));
+                    unplaced -= dueThisMinute;
+                }
+            }
+            return minute < duration ? minute : -1;
+        }
+
+        // True when a customer arrives at or before the given minute
+        boolean hasArrivalBy(int time) {
+            int next = nextArrivalTime();
+            return next != -1 && next <= time;
+        }
+
+        // Add the next customer in arrival order to the store and return its slot, only valid
+        // after nextArrivalTime() found one
+        int next(CustomerStore customers) {
+            dueThisMinute--;
+            int slot = customers.add(nextCustNo++, minute);
+            if (parties != null) {
+                customers.set(CustomerStore.PARTY, slot, parties.nextInt(1, partyMax + 1));
+            }
+            return slot;
+        }
+
+        // Binomial(n, p) by counting geometric waiting times between successes, costs O(n * p + 1)
+        long binomial(long n, double p) {
+            if (p >= 1.0) {
+                return n;
+            }
+            double logQ = Math.log1p(-p);
+            long successes = 0;
+            long trials = 0;
+            while (true) {
+                trials += (long) Math.ceil(Math.log(1.0 - random.nextDouble()) / logQ);
+                if (trials > n) {
+                    return successes;
+                }
+                successes++;
+            }
+        }
 
-        // Create a custom comparator to sort based on arrival time
-        Comparator<Customer> customerComparator = Comparator.comparingInt(customer -> customer.arrivalTime);
+        // Poisson(lambda) by counting exponential gaps within one minute, costs O(lambda + 1)
+        long poisson(double lambda) {
+            long count = 0;
+            double elapsed = -Math.log(1.0 - random.nextDouble());
+            while (elapsed < lambda) {
+                count++;
+                elapsed -= Math.log(1.0 - random.nextDouble());
+            }
+            return count;
+        }
+    }
 
-        // Sort the list using the custom comparator
-        customerList.sort(customerComparator);
+    // Arrival stream of a new seller, with random draws of its own so that how lazily an engine
+    // pulls arrivals never changes the seller's service times
+    ArrivalStream newArrivalStream(SplittableRandom sellerRandom) {
+        ArrivalStream stream = new ArrivalStream(N, simulationDuration, arrivals.equals("poisson"), sellerRandom.split());
+        // Party sizes are split off only with parties, so other runs keep their draws
+        if (partyMax > 1) {
+            stream.parties = sellerRandom.split();
+            stream.partyMax = partyMax;
+        }
+        return stream;
+    }
 
-        // Convert the sorted ArrayList back to a Queue
-        Queue<Customer> sortedCustomerQueue = new LinkedList<>(customerList);
+    // Stream of buy-or-walk-away draws, split off only with holds so other runs keep their draws
+    SplittableRandom newDecisionStream(SplittableRandom sellerRandom) {
+        return holdMinutes > 0 ? sellerRandom.split() : null;
+    }
 
-        return sortedCustomerQueue;
+    CustomerStore newCustomerStore(int sellerNo) {
+        return new CustomerStore(sellerNo, customerStore.equals("direct"), 16);
     }
 }